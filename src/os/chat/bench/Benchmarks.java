@@ -0,0 +1,85 @@
+package os.chat.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+
+/**
+ * Runs the whole benchmark suite with its default sizes, and holds the
+ * helpers shared by the benchmarks.
+ * <p>
+ * The benchmarks are plain Java programs, run from the compiled classes
+ * (e.g. <code>java -cp out/production/OS_P1 os.chat.bench.Benchmarks</code>).
+ * Each one can also be run on its own, see its documentation for its
+ * arguments. They all run against a registry created on the loopback
+ * interface.
+ */
+public class Benchmarks {
+
+	/**
+	 * The standard output, kept for the results while the console logging of
+	 * the chat servers is silenced.
+	 */
+	static final PrintStream out = System.out;
+
+	private static boolean registryStarted = false;
+
+	public static void main(String[] args) throws Exception {
+		FanOutBenchmark.main(new String[] { "500", "2000" });
+		ChurnBenchmark.main(new String[] { "200", "2000" });
+		RoomDirectoryBenchmark.main(new String[] { "1000", "10000" });
+		RmiPublishBenchmark.main(new String[] { "50", "2000" });
+		FrameBenchmark.main(new String[] { "1000", "200", "200" });
+		CompressionBenchmark.main(new String[] { "100", "500" });
+		CodecBenchmark.main(new String[] { "50", "200", "1000", "2000" });
+		System.exit(0);
+	}
+
+	/**
+	 * Creates an RMI registry on the loopback interface, once per JVM, and
+	 * points the chat servers and clients to it. The rate limits of the
+	 * servers are lifted, unless set explicitly: the benchmarks measure
+	 * their peak throughput.
+	 */
+	static synchronized void startRegistry() throws RemoteException {
+		if (registryStarted)
+			return;
+		System.setProperty("os.chat.host", "127.0.0.1");
+		System.setProperty("java.rmi.server.hostname", "127.0.0.1");
+		for (String limit : new String[] { "publisher", "room", "create" }) {
+			if (System.getProperty("os.chat.limit." + limit + ".rate") == null)
+				System.setProperty("os.chat.limit." + limit + ".rate", "0");
+		}
+		LocateRegistry.createRegistry(1099);
+		registryStarted = true;
+	}
+
+	/**
+	 * Discards everything printed on the standard output, so that the
+	 * console logging of the chat servers does not dominate the results.
+	 */
+	static void silence() {
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+	}
+
+	/**
+	 * Prints one result line.
+	 * @param name the name of the benchmark
+	 * @param operations the number of operations measured
+	 * @param elapsedNanos the time taken by the operations
+	 * @param latencies the latency of the operations, or <code>null</code>
+	 */
+	static void report(String name, long operations, long elapsedNanos, LatencyRecorder latencies) {
+		out.printf("%-40s %12.0f ops/s  %s%n", name, operations * 1e9 / elapsedNanos,
+				latencies == null ? "" : latencies.toString());
+	}
+}
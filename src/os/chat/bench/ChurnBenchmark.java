@@ -0,0 +1,71 @@
+package os.chat.bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import os.chat.server.ChatServer;
+
+/**
+ * Measures a broadcast while clients keep joining and leaving the room: a
+ * background thread registers and unregisters extra subscribers in a loop
+ * while the stable subscribers receive the published messages.
+ * <p>
+ * Usage: <code>java os.chat.bench.ChurnBenchmark [subscribers] [messages]</code>
+ */
+public class ChurnBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int subscribers = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+		Benchmarks.startRegistry();
+		Benchmarks.silence();
+		final ChatServer room = new ChatServer("bench-churn-" + subscribers);
+		AtomicLong received = new AtomicLong();
+		ArrayList<ProbeClient> probes = new ArrayList<ProbeClient>();
+		for (int i = 0; i < subscribers; i++) {
+			ProbeClient probe = new ProbeClient(received);
+			probes.add(probe);
+			room.register(probe);
+		}
+
+		// the churning clients have their own counter, so that the stable
+		// subscribers can be waited for
+		final AtomicLong churnReceived = new AtomicLong();
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicLong churnOperations = new AtomicLong();
+		Thread churn = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (running.get()) {
+						ProbeClient probe = new ProbeClient(churnReceived);
+						room.register(probe);
+						room.unregister(probe);
+						churnOperations.addAndGet(2);
+					}
+				} catch (Exception e) {
+					e.printStackTrace(Benchmarks.out);
+				}
+			}
+		}, "churn");
+		churn.start();
+
+		LatencyRecorder publishLatency = new LatencyRecorder();
+		long start = System.nanoTime();
+		FanOutBenchmark.publish(room, messages, subscribers, received, publishLatency);
+		long elapsed = System.nanoTime() - start;
+		running.set(false);
+		churn.join();
+
+		LatencyRecorder delivery = new LatencyRecorder();
+		for (ProbeClient probe : probes) {
+			delivery.addAll(probe.getLatencies());
+		}
+		Benchmarks.report("churn publish call, " + subscribers + " subscribers", messages, elapsed, publishLatency);
+		Benchmarks.report("churn delivery, " + subscribers + " subscribers", received.get(), elapsed, delivery);
+		Benchmarks.report("churn register+unregister", churnOperations.get(), elapsed, null);
+		if (received.get() != (long) messages * subscribers)
+			Benchmarks.out.println("  lost " + ((long) messages * subscribers - received.get()) + " deliveries");
+	}
+}
@@ -0,0 +1,124 @@
+package os.chat.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+import os.chat.codec.StringList;
+import os.chat.server.Message;
+import os.chat.server.MessageList;
+
+/**
+ * Measures the round trip (encoding then decoding, as RMI would) of a batch
+ * of messages and of a room list:
+ * <ul>
+ * <li> <b>serialized</b>: the default serialization, of an
+ * <code>ArrayList</code> of plain <code>Serializable</code> messages, or of a
+ * <code>Vector</code> of room names,
+ * <li> <b>frames</b>: an <code>ArrayList</code> of {@link Message}s, each one
+ * written as its frame with its own copy of the room name,
+ * <li> <b>codec</b>: a {@link MessageList}, which writes the room name once,
+ * or a {@link StringList}.
+ * </ul>
+ * Every message is decoded after being read. The time, the bytes allocated
+ * by the benchmark thread and the size of the encoded form are reported per
+ * round trip.
+ * <p>
+ * Usage: <code>java os.chat.bench.CodecBenchmark [batchSize] [bodySize]
+ * [rooms] [roundTrips]</code>
+ */
+public class CodecBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int bodySize = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int rooms = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		int roundTrips = args.length > 3 ? Integer.parseInt(args[3]) : 2000;
+
+		char[] chars = new char[bodySize];
+		Arrays.fill(chars, 'x');
+		long now = System.currentTimeMillis();
+		ArrayList<PlainMessage> plain = new ArrayList<PlainMessage>(batchSize);
+		ArrayList<Message> frames = new ArrayList<Message>(batchSize);
+		for (int i = 0; i < batchSize; i++) {
+			// distinct instances, as the serialization writes a string seen
+			// before as a reference to it
+			String body = new String(chars);
+			plain.add(new PlainMessage("sports", 1000 + i, "bench", body, now + i));
+			frames.add(new Message("sports", 1000 + i, "bench", body, now + i));
+		}
+		Vector<String> names = new Vector<String>(rooms);
+		for (int i = 0; i < rooms; i++) {
+			names.add("room-" + i);
+		}
+
+		Benchmarks.out.println("batchSize=" + batchSize + " bodySize=" + bodySize + " rooms=" + rooms
+				+ " roundTrips=" + roundTrips);
+		for (int round = 0; round < 3; round++) {
+			// the first rounds warm the JIT up
+			boolean last = round == 2;
+			run("messages serialized", plain, roundTrips, last);
+			run("messages frames    ", frames, roundTrips, last);
+			run("messages codec     ", new MessageList(frames), roundTrips, last);
+			run("rooms    serialized", names, roundTrips, last);
+			run("rooms    codec     ", new StringList(names), roundTrips, last);
+		}
+	}
+
+	private static void run(String name, List<?> list, int roundTrips, boolean print)
+			throws IOException, ClassNotFoundException {
+		int size = 0;
+		long allocated = FrameBenchmark.allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < roundTrips; i++) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+			try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+				out.writeObject(list);
+			}
+			size = bytes.size();
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+			List<?> read = (List<?>) in.readObject();
+			for (Object element : read) {
+				if (element instanceof Message)
+					((Message) element).getBody();
+			}
+			if (read.size() != list.size())
+				throw new IllegalStateException("List corrupted");
+		}
+		long elapsed = System.nanoTime() - start;
+		allocated = FrameBenchmark.allocatedBytes() - allocated;
+		if (print)
+			Benchmarks.out.printf("%s %8.1f us/round trip %9d B allocated/round trip %7d B encoded%n", name,
+					elapsed / 1e3 / roundTrips, allocated / roundTrips, size);
+	}
+
+	/**
+	 * A message as the default serialization writes it: a class descriptor,
+	 * then its fields.
+	 */
+	private static class PlainMessage implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final String roomName;
+		final long sequence;
+		final String publisher;
+		final String body;
+		final long timestamp;
+
+		PlainMessage(String roomName, long sequence, String publisher, String body, long timestamp) {
+			this.roomName = roomName;
+			this.sequence = sequence;
+			this.publisher = publisher;
+			this.body = body;
+			this.timestamp = timestamp;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package os.chat.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import os.chat.server.Message;
+
+/**
+ * Measures the trade-off of compressing the messages sent to the clients,
+ * for several kinds of payload: a short chat line, a pasted log, a pasted
+ * code block and incompressible data.
+ * <p>
+ * For each payload a broadcast to every recipient is marshalled as RMI
+ * would, one <code>ObjectOutputStream</code> per recipient, either plain or
+ * compressed (the message being compressed once per broadcast). The CPU
+ * time and bytes written are reported per broadcast, and the time to read
+ * and decode a message on the client side.
+ * <p>
+ * Usage: <code>java os.chat.bench.CompressionBenchmark [recipients]
+ * [broadcasts]</code>
+ */
+public class CompressionBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int recipients = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int broadcasts = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+		String[][] payloads = {
+				{ "chat line", "see you at the game tonight, the usual place?" },
+				{ "log 4 KB", log(4096) },
+				{ "code 16 KB", code(16384) },
+				{ "random 4 KB", random(4096) } };
+		Benchmarks.out.println("recipients=" + recipients + " broadcasts=" + broadcasts);
+		for (int round = 0; round < 3; round++) {
+			// the first rounds warm the JIT up
+			boolean last = round == 2;
+			for (String[] payload : payloads) {
+				run(payload[0], "plain     ", payload[1], recipients, broadcasts, false, last);
+				run(payload[0], "compressed", payload[1], recipients, broadcasts, true, last);
+			}
+		}
+	}
+
+	private static void run(String payload, String mode, String body, int recipients, int broadcasts,
+			boolean compress, boolean print) throws IOException, ClassNotFoundException {
+		FrameBenchmark.CountingStream sink = new FrameBenchmark.CountingStream();
+		long start = System.nanoTime();
+		for (int b = 0; b < broadcasts; b++) {
+			Message message = new Message("sports", b, "bench", body, System.currentTimeMillis());
+			for (int r = 0; r < recipients; r++) {
+				ArrayList<Message> batch = new ArrayList<Message>(1);
+				batch.add(compress ? message.compressed() : message);
+				ObjectOutputStream out = new ObjectOutputStream(sink);
+				out.writeObject(batch);
+				out.flush();
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+
+		// client side: read and decode one batch
+		ArrayList<Message> batch = new ArrayList<Message>(1);
+		Message message = new Message("sports", 1, "bench", body, System.currentTimeMillis());
+		batch.add(compress ? message.compressed() : message);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(batch);
+		}
+		byte[] serialized = bytes.toByteArray();
+		int reads = 2000;
+		long readStart = System.nanoTime();
+		for (int i = 0; i < reads; i++) {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+			@SuppressWarnings("unchecked")
+			List<Message> read = (List<Message>) in.readObject();
+			if (!read.get(0).getBody().equals(body))
+				throw new IllegalStateException("Message corrupted");
+		}
+		long readElapsed = System.nanoTime() - readStart;
+
+		if (print)
+			Benchmarks.out.printf("%-12s %s %8.1f us/broadcast %9d B/broadcast %7.1f us/read%n", payload, mode,
+					elapsed / 1e3 / broadcasts, sink.count / broadcasts, readElapsed / 1e3 / reads);
+	}
+
+	private static String log(int size) {
+		StringBuilder text = new StringBuilder();
+		Random random = new Random(1);
+		String[] levels = { "INFO ", "DEBUG", "WARN " };
+		while (text.length() < size) {
+			text.append("2024-03-0").append(1 + random.nextInt(9)).append(" 12:").append(10 + random.nextInt(50))
+					.append(":").append(10 + random.nextInt(50)).append(".").append(100 + random.nextInt(900))
+					.append(" ").append(levels[random.nextInt(levels.length)]).append(" [worker-")
+					.append(random.nextInt(8)).append("] o.c.s.ChatServer - delivered ").append(random.nextInt(1000))
+					.append(" message(s) to client-").append(random.nextInt(100)).append('\n');
+		}
+		return text.substring(0, size);
+	}
+
+	private static String code(int size) {
+		StringBuilder text = new StringBuilder();
+		Random random = new Random(2);
+		while (text.length() < size) {
+			int n = random.nextInt(100);
+			text.append("\tpublic int get").append("Value").append(n).append("() {\n\t\treturn values[")
+					.append(n).append("] + offset;\n\t}\n\n");
+		}
+		return text.substring(0, size);
+	}
+
+	private static String random(int size) {
+		Random random = new Random(3);
+		char[] chars = new char[size];
+		for (int i = 0; i < size; i++) {
+			chars[i] = (char) (33 + random.nextInt(94));
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,79 @@
+package os.chat.bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import os.chat.server.ChatServer;
+
+/**
+ * Measures the in-process fan-out of {@link ChatServer#publish(String, String)}
+ * to local subscribers, without any network: the cost of queueing a message
+ * for every client (publish call latency) and the time until each client
+ * received it (delivery latency).
+ * <p>
+ * At most {@link #WINDOW} messages are in flight, so that no subscriber
+ * queue overflows.
+ * <p>
+ * Usage: <code>java os.chat.bench.FanOutBenchmark [subscribers] [messages]</code>
+ */
+public class FanOutBenchmark {
+
+	static final int WINDOW = 200;
+
+	public static void main(String[] args) throws Exception {
+		int subscribers = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+		Benchmarks.startRegistry();
+		Benchmarks.silence();
+		ChatServer room = new ChatServer("bench-fanout-" + subscribers);
+		AtomicLong received = new AtomicLong();
+		ArrayList<ProbeClient> probes = new ArrayList<ProbeClient>();
+		for (int i = 0; i < subscribers; i++) {
+			ProbeClient probe = new ProbeClient(received);
+			probes.add(probe);
+			room.register(probe);
+		}
+
+		for (int round = 0; round < 2; round++) {
+			// the first round warms the JIT up
+			received.set(0);
+			for (ProbeClient probe : probes) {
+				probe.getLatencies().reset();
+			}
+			LatencyRecorder publishLatency = new LatencyRecorder();
+			long start = System.nanoTime();
+			publish(room, messages, subscribers, received, publishLatency);
+			long elapsed = System.nanoTime() - start;
+
+			if (round == 1) {
+				LatencyRecorder delivery = new LatencyRecorder();
+				for (ProbeClient probe : probes) {
+					delivery.addAll(probe.getLatencies());
+				}
+				Benchmarks.report("fan-out publish call, " + subscribers + " subscribers", messages, elapsed, publishLatency);
+				Benchmarks.report("fan-out delivery, " + subscribers + " subscribers", received.get(), elapsed, delivery);
+			}
+		}
+	}
+
+	/**
+	 * Publishes <code>messages</code> messages and waits until they are all
+	 * delivered.
+	 */
+	static void publish(ChatServer room, int messages, int subscribers, AtomicLong received,
+			LatencyRecorder publishLatency) throws Exception {
+		for (int i = 0; i < messages; i++) {
+			long t0 = System.nanoTime();
+			room.publish(Long.toString(t0), "bench");
+			publishLatency.record(System.nanoTime() - t0);
+			while (received.get() < (long) (i - WINDOW) * subscribers) {
+				Thread.onSpinWait();
+			}
+		}
+		long deadline = System.nanoTime() + 30_000_000_000L;
+		while (received.get() < (long) messages * subscribers && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+	}
+}
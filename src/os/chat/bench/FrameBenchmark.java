@@ -0,0 +1,104 @@
+package os.chat.bench;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import os.chat.server.Message;
+
+/**
+ * Compares the cost of marshalling one broadcast for every recipient:
+ * <ul>
+ * <li> <b>strings</b>: the room name and the formatted text, as sent by the
+ * former <code>receiveMsg(roomName, message)</code> callback,
+ * <li> <b>frame</b>: a {@link Message} encoded once and reused for every
+ * recipient.
+ * </ul>
+ * Each recipient gets its own <code>ObjectOutputStream</code>, as each RMI
+ * call does. The CPU time and the bytes allocated by the benchmark thread
+ * are reported per broadcast.
+ * <p>
+ * Usage: <code>java os.chat.bench.FrameBenchmark [recipients] [bodySize]
+ * [broadcasts]</code>
+ */
+public class FrameBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int recipients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int bodySize = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int broadcasts = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+		char[] chars = new char[bodySize];
+		Arrays.fill(chars, 'x');
+		String body = new String(chars);
+
+		Benchmarks.out.println("recipients=" + recipients + " bodySize=" + bodySize + " broadcasts=" + broadcasts);
+		for (int round = 0; round < 3; round++) {
+			// the first rounds warm the JIT up
+			run("strings", recipients, body, broadcasts, false);
+			run("frame  ", recipients, body, broadcasts, true);
+		}
+	}
+
+	private static void run(String name, int recipients, String body, int broadcasts, boolean frame) throws IOException {
+		CountingStream sink = new CountingStream();
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		for (int b = 0; b < broadcasts; b++) {
+			if (frame) {
+				Message message = new Message("sports", b, "bench", body, System.currentTimeMillis());
+				ArrayList<Message> batch = new ArrayList<Message>(1);
+				batch.add(message);
+				for (int r = 0; r < recipients; r++) {
+					ObjectOutputStream out = new ObjectOutputStream(sink);
+					out.writeObject(batch);
+					out.flush();
+				}
+			} else {
+				String line = "[bench]: " + body;
+				for (int r = 0; r < recipients; r++) {
+					ObjectOutputStream out = new ObjectOutputStream(sink);
+					out.writeObject("sports");
+					out.writeObject(line);
+					out.flush();
+				}
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		allocated = allocatedBytes() - allocated;
+		Benchmarks.out.printf("%s %8.1f us/broadcast %10d B allocated/broadcast %8d B written/broadcast%n",
+				name, elapsed / 1e3 / broadcasts, allocated / broadcasts, sink.count / broadcasts);
+	}
+
+	/**
+	 * @return the bytes allocated so far by the current thread, or 0 if the
+	 * JVM does not tell
+	 */
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return 0;
+	}
+
+	/**
+	 * Discards the bytes written, only counting them.
+	 */
+	static class CountingStream extends OutputStream {
+
+		long count = 0;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
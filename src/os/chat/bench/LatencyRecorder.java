@@ -0,0 +1,78 @@
+package os.chat.bench;
+
+import java.util.Arrays;
+
+/**
+ * Records latency samples, in nanoseconds, and computes their percentiles.
+ * <p>
+ * Every sample is kept, so percentiles are exact; this is meant for
+ * benchmarks of bounded length, not for long-running servers.
+ */
+public class LatencyRecorder {
+
+	private long[] samples = new long[1024];
+	private int count = 0;
+
+	/**
+	 * Adds a sample. May be called from several threads.
+	 * @param nanos the latency in nanoseconds
+	 */
+	public synchronized void record(long nanos) {
+		if (count == samples.length)
+			samples = Arrays.copyOf(samples, count * 2);
+		samples[count++] = nanos;
+	}
+
+	/**
+	 * Adds all the samples of another recorder.
+	 * @param other the recorder to merge into this one
+	 */
+	public void addAll(LatencyRecorder other) {
+		long[] copy;
+		int n;
+		synchronized (other) {
+			copy = other.samples;
+			n = other.count;
+		}
+		for (int i = 0; i < n; i++) {
+			record(copy[i]);
+		}
+	}
+
+	/**
+	 * @return the number of samples recorded
+	 */
+	public synchronized int count() {
+		return count;
+	}
+
+	/**
+	 * Computes a percentile of the recorded samples.
+	 * @param percentile between 0 and 100
+	 * @return the latency in nanoseconds, 0 if there is no sample
+	 */
+	public synchronized long percentile(double percentile) {
+		if (count == 0)
+			return 0;
+		Arrays.sort(samples, 0, count);
+		int index = (int) Math.ceil(percentile / 100 * count) - 1;
+		return samples[Math.max(0, Math.min(count - 1, index))];
+	}
+
+	/**
+	 * Forgets all the samples.
+	 */
+	public synchronized void reset() {
+		count = 0;
+	}
+
+	/**
+	 * Formats the usual percentiles, in microseconds.
+	 * @return <code>p50=... p99=... max=...</code>
+	 */
+	@Override
+	public String toString() {
+		return String.format("p50=%.1fus p99=%.1fus max=%.1fus",
+				percentile(50) / 1e3, percentile(99) / 1e3, percentile(100) / 1e3);
+	}
+}
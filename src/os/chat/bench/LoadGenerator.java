@@ -0,0 +1,145 @@
+package os.chat.bench;
+
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import os.chat.client.ChatClient;
+import os.chat.client.CommandsToWindow;
+import os.chat.client.HeadlessWindow;
+import os.chat.server.ChatServerManager;
+
+/**
+ * Drives a chat server with thousands of simulated clients, for soak and
+ * capacity testing.
+ * <p>
+ * The generator starts a registry and a {@link ChatServerManager} on the
+ * loopback interface (or uses the registry already running on
+ * 127.0.0.1:1099), creates the rooms, and starts the clients, each one a
+ * real {@link ChatClient} with a {@link HeadlessWindow}, spread round-robin
+ * across the rooms. It then publishes from random clients at a fixed total
+ * rate, with body sizes drawn uniformly between a minimum and a maximum.
+ * <p>
+ * Each body starts with the send time, so that every delivery records its
+ * end-to-end latency (from the call to <code>sendText</code> to the
+ * publication in the window). At the end the latency percentiles and the
+ * number of lost deliveries are printed.
+ * <p>
+ * Usage: <code>java os.chat.bench.LoadGenerator [clients] [rooms]
+ * [messagesPerSecond] [seconds] [minSize] [maxSize]</code>. The transport
+ * follows the <code>os.chat.transport</code> system property.
+ */
+public class LoadGenerator {
+
+	private static final int SENDER_THREADS = Integer.getInteger("os.chat.load.senders", 16);
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int rooms = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int rate = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+		int minSize = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+		int maxSize = args.length > 5 ? Integer.parseInt(args[5]) : 200;
+
+		Benchmarks.out.println("clients=" + clients + " rooms=" + rooms + " rate=" + rate + "/s seconds=" + seconds
+				+ " size=" + minSize + ".." + maxSize + " transport=" + System.getProperty("os.chat.transport", "rmi"));
+		Benchmarks.silence();
+		startServer();
+
+		final AtomicLong received = new AtomicLong();
+		final LatencyRecorder latencies = new LatencyRecorder();
+		CommandsToWindow observer = new CommandsToWindow() {
+			public void publish(String chatName, String message) {
+				long now = System.nanoTime();
+				int start = message.indexOf(": ") + 2;
+				int end = message.indexOf(' ', start);
+				latencies.record(now - Long.parseLong(message.substring(start, end < 0 ? message.length() : end)));
+				received.incrementAndGet();
+			}
+		};
+
+		String[] roomNames = new String[rooms];
+		ChatClient[] chatClients = new ChatClient[clients];
+		int[] members = new int[rooms];
+		for (int i = 0; i < clients; i++) {
+			chatClients[i] = new ChatClient(new HeadlessWindow(observer), "load-" + i);
+			if (i < rooms) {
+				roomNames[i] = "load-" + i;
+				chatClients[i].createNewRoom(roomNames[i]);
+			}
+		}
+		for (int i = 0; i < clients; i++) {
+			if (chatClients[i].joinChatRoom(roomNames[i % rooms]))
+				members[i % rooms]++;
+		}
+		Benchmarks.out.println("joined: " + Arrays.toString(members));
+
+		ExecutorService senders = Executors.newFixedThreadPool(SENDER_THREADS);
+		final AtomicLong expected = new AtomicLong();
+		Random random = new Random(42);
+		long total = (long) rate * seconds;
+		long periodNanos = 1000000000L / rate;
+		long start = System.nanoTime();
+		for (long n = 0; n < total; n++) {
+			long due = start + n * periodNanos;
+			long wait;
+			while ((wait = due - System.nanoTime()) > 0) {
+				if (wait > 2000000)
+					Thread.sleep(1);
+				else
+					Thread.onSpinWait();
+			}
+			final int client = random.nextInt(clients);
+			final int room = client % rooms;
+			final String padding = padding(minSize + random.nextInt(maxSize - minSize + 1));
+			expected.addAndGet(members[room]);
+			final ChatClient chatClient = chatClients[client];
+			final String roomName = roomNames[room];
+			senders.execute(new Runnable() {
+				public void run() {
+					chatClient.sendText(roomName, System.nanoTime() + " " + padding);
+				}
+			});
+		}
+		long elapsed = System.nanoTime() - start;
+		senders.shutdown();
+		senders.awaitTermination(1, TimeUnit.MINUTES);
+		long deadline = System.nanoTime() + 10000000000L;
+		while (received.get() < expected.get() && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+
+		Benchmarks.report("sent", total, elapsed, null);
+		Benchmarks.report("delivered end to end", received.get(), elapsed, latencies);
+		long lost = expected.get() - received.get();
+		Benchmarks.out.printf("lost %d of %d deliveries (%.3f%%)%n", lost, expected.get(),
+				expected.get() == 0 ? 0 : 100.0 * lost / expected.get());
+		System.exit(0);
+	}
+
+	/**
+	 * Starts a registry and a chat server manager on the loopback interface,
+	 * unless a registry is already running there.
+	 */
+	private static void startServer() {
+		System.setProperty("os.chat.host", "127.0.0.1");
+		System.setProperty("java.rmi.server.hostname", "127.0.0.1");
+		try {
+			LocateRegistry.getRegistry("127.0.0.1").list();
+			Benchmarks.out.println("Using the registry already running on 127.0.0.1:1099");
+		} catch (RemoteException e) {
+			ChatServerManager.main(new String[0]);
+		}
+	}
+
+	private static String padding(int size) {
+		char[] chars = new char[size];
+		Arrays.fill(chars, 'x');
+		return new String(chars);
+	}
+}
@@ -0,0 +1,49 @@
+package os.chat.bench;
+
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import os.chat.client.CommandsFromServer;
+import os.chat.server.Message;
+
+/**
+ * A client that only counts the messages it receives and records their
+ * latency. The benchmarks publish the value of <code>System.nanoTime()</code>
+ * as the body of their messages, so the latency is valid as long as the
+ * publisher and the probe run in the same JVM.
+ */
+public class ProbeClient implements CommandsFromServer {
+
+	private final AtomicLong received;
+	private final LatencyRecorder latencies = new LatencyRecorder();
+
+	/**
+	 * Creates a probe.
+	 * @param received the counter shared by all the probes of a benchmark
+	 */
+	public ProbeClient(AtomicLong received) {
+		this.received = received;
+	}
+
+	/**
+	 * @return the latencies recorded by this probe
+	 */
+	public LatencyRecorder getLatencies() {
+		return latencies;
+	}
+
+	public void receiveMsg(String roomName, String message) throws RemoteException {
+		long now = System.nanoTime();
+		latencies.record(now - Long.parseLong(message.substring(message.indexOf(": ") + 2)));
+		received.incrementAndGet();
+	}
+
+	public void receiveBatch(List<Message> messages) throws RemoteException {
+		long now = System.nanoTime();
+		for (Message message : messages) {
+			latencies.record(now - Long.parseLong(message.getBody()));
+		}
+		received.addAndGet(messages.size());
+	}
+}
@@ -0,0 +1,71 @@
+package os.chat.bench;
+
+import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import os.chat.client.CommandsFromServer;
+import os.chat.server.ChatServer;
+import os.chat.server.ChatServerInterface;
+
+/**
+ * Measures publishing end to end over RMI on the loopback interface: the
+ * publisher calls the room through its registry stub, and each subscriber
+ * is an exported remote object called back by the room.
+ * <p>
+ * Usage: <code>java os.chat.bench.RmiPublishBenchmark [subscribers] [messages]</code>
+ */
+public class RmiPublishBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int subscribers = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+		Benchmarks.startRegistry();
+		Benchmarks.silence();
+		String roomName = "bench-rmi-" + subscribers;
+		new ChatServer(roomName);
+		ChatServerInterface room = (ChatServerInterface) LocateRegistry.getRegistry("127.0.0.1")
+				.lookup("room " + roomName);
+
+		AtomicLong received = new AtomicLong();
+		ArrayList<ProbeClient> probes = new ArrayList<ProbeClient>();
+		for (int i = 0; i < subscribers; i++) {
+			ProbeClient probe = new ProbeClient(received);
+			probes.add(probe);
+			room.register((CommandsFromServer) UnicastRemoteObject.exportObject(probe, 0));
+		}
+
+		for (int round = 0; round < 2; round++) {
+			received.set(0);
+			for (ProbeClient probe : probes) {
+				probe.getLatencies().reset();
+			}
+			LatencyRecorder publishLatency = new LatencyRecorder();
+			long start = System.nanoTime();
+			for (int i = 0; i < messages; i++) {
+				long t0 = System.nanoTime();
+				room.publish(Long.toString(t0), "bench");
+				publishLatency.record(System.nanoTime() - t0);
+				while (received.get() < (long) (i - FanOutBenchmark.WINDOW) * subscribers) {
+					Thread.onSpinWait();
+				}
+			}
+			long deadline = System.nanoTime() + 30_000_000_000L;
+			while (received.get() < (long) messages * subscribers && System.nanoTime() < deadline) {
+				Thread.sleep(1);
+			}
+			long elapsed = System.nanoTime() - start;
+
+			if (round == 1) {
+				LatencyRecorder delivery = new LatencyRecorder();
+				for (ProbeClient probe : probes) {
+					delivery.addAll(probe.getLatencies());
+				}
+				Benchmarks.report("RMI publish call, " + subscribers + " subscribers", messages, elapsed, publishLatency);
+				Benchmarks.report("RMI publish->receive, " + subscribers + " subscribers", received.get(), elapsed, delivery);
+			}
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package os.chat.bench;
+
+import java.util.Random;
+
+import os.chat.server.ChatServerManager;
+
+/**
+ * Measures the room directory of {@link ChatServerManager}: room creation
+ * (which includes exporting the room and binding it in the registry), then
+ * lookup by name and listing of one page of rooms by prefix, for
+ * increasing numbers of rooms.
+ * <p>
+ * Usage: <code>java os.chat.bench.RoomDirectoryBenchmark [rooms...]</code>
+ */
+public class RoomDirectoryBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0)
+			args = new String[] { "1000", "10000", "100000" };
+
+		Benchmarks.startRegistry();
+		Benchmarks.silence();
+		Random random = new Random(42);
+		for (String arg : args) {
+			int rooms = Integer.parseInt(arg);
+			ChatServerManager manager = new ChatServerManager();
+
+			LatencyRecorder create = new LatencyRecorder();
+			long start = System.nanoTime();
+			for (int i = 0; i < rooms; i++) {
+				long t0 = System.nanoTime();
+				manager.createRoom("room-" + i);
+				create.record(System.nanoTime() - t0);
+			}
+			Benchmarks.report("createRoom, " + rooms + " rooms", rooms, System.nanoTime() - start, create);
+
+			int lookups = 1000000;
+			int found = 0;
+			start = System.nanoTime();
+			for (int i = 0; i < lookups; i++) {
+				if (manager.getChatRoom("room-" + random.nextInt(rooms)) != null)
+					found++;
+			}
+			Benchmarks.report("getChatRoom, " + rooms + " rooms", lookups, System.nanoTime() - start, null);
+			if (found != lookups)
+				Benchmarks.out.println("  missing rooms: " + (lookups - found));
+
+			int pages = 10000;
+			LatencyRecorder page = new LatencyRecorder();
+			start = System.nanoTime();
+			for (int i = 0; i < pages; i++) {
+				long t0 = System.nanoTime();
+				manager.getRoomsList("room-" + random.nextInt(10), 0, 50);
+				page.record(System.nanoTime() - t0);
+			}
+			Benchmarks.report("getRoomsList(prefix) page, " + rooms + " rooms", pages, System.nanoTime() - start, page);
+		}
+	}
+}
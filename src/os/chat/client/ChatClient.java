@@ -4,18 +4,34 @@ package os.chat.client;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.rmi.AccessException;
+import java.rmi.ConnectException;
+import java.rmi.NoSuchObjectException;
 import java.rmi.NotBoundException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.rmi.UnmarshalException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
+import os.chat.codec.StringList;
+import os.chat.log.Log;
+import os.chat.nio.NioConnection;
 import os.chat.server.ChatServer;
 import os.chat.server.ChatServerInterface;
 import os.chat.server.ChatServerManager;
 import os.chat.server.ChatServerManagerInterface;
+import os.chat.server.Message;
 import java.io.Serializable;
 
 /**
@@ -48,16 +64,92 @@ public class ChatClient implements CommandsFromWindow, CommandsFromServer {
   ChatServerManagerInterface csm;
   Registry registry;
   private CommandsFromServer stub;
-  String IP = "172.20.10.3";
+  String IP = System.getProperty("os.chat.host", "172.20.10.3");
+
+  /**
+   * The remote stubs of the chat rooms, keyed by room name, so that the
+   * registry is only looked up when joining a room or after the stub became
+   * invalid (e.g. the room server restarted).
+   */
+  private final ConcurrentHashMap<String, ChatServerInterface> chatRooms = new ConcurrentHashMap<>();
+
+  /**
+   * The registries of the server nodes hosting the rooms, keyed by
+   * <code>host:port</code>, when the rooms are sharded across several nodes.
+   */
+  private final ConcurrentHashMap<String, Registry> nodeRegistries = new ConcurrentHashMap<>();
+  private volatile boolean locateRooms = true;
+
+  /**
+   * The messages received in each chat room, put back in sequence order. The
+   * last sequence number is kept after leaving a room, to replay only the
+   * missed messages when joining it again.
+   */
+  private final ConcurrentHashMap<String, RoomStream> streams = new ConcurrentHashMap<>();
+
+  /**
+   * Sends the acks and fills the gaps, off the threads delivering the
+   * messages. Acks are sent every <code>os.chat.ack.intervalMs</code>
+   * milliseconds for the rooms that received messages since the last one.
+   */
+  private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(r -> {
+	  Thread thread = new Thread(r, "chat-client-acks");
+	  thread.setDaemon(true);
+	  return thread;
+  });
+  private static final long ACK_INTERVAL_MS = Long.getLong("os.chat.ack.intervalMs", 200);
+
+  /**
+   * The rooms joined, whose leases are renewed together by one heartbeat
+   * every third of <code>os.chat.lease.ms</code>.
+   */
+  private final Set<String> joinedRooms = ConcurrentHashMap.newKeySet();
+  private static final long LEASE_MS = Long.getLong("os.chat.lease.ms", 30000);
+
+  /**
+   * The messages sent and not published yet. Failures are reported to the
+   * window.
+   */
+  private final SendPipeline outbound;
+  private volatile boolean batchPublish = true;
+
+  /**
+   * Whether to ask the rooms to compress the large messages, unless the
+   * system property <code>os.chat.compression</code> is <code>false</code>.
+   */
+  private static final boolean COMPRESSION = !"false".equals(System.getProperty("os.chat.compression"));
+
+  /**
+   * The connection to the server when the NIO transport is used (system
+   * property <code>os.chat.transport=nio</code>), <code>null</code> with RMI.
+   */
+  private NioConnection connection;
 
 
 	public ChatClient(CommandsToWindow window, String userName) {
 		this.window = window;
 		this.userName = userName;
+		outbound = new SendPipeline(this::publish, (roomName, messages, cause) -> window.sendFailed(roomName, messages, cause));
+		background.scheduleWithFixedDelay(this::acknowledge, ACK_INTERVAL_MS, ACK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		if (LEASE_MS > 0)
+			background.scheduleWithFixedDelay(this::renewLeases, LEASE_MS / 3, LEASE_MS / 3, TimeUnit.MILLISECONDS);
+
+		if ("nio".equals(System.getProperty("os.chat.transport", "rmi"))) {
+			try {
+				connection = new NioConnection(IP, Integer.getInteger("os.chat.nio.port", 1100), this);
+				csm = connection.getManager();
+				// the server pushes the messages on the connection
+				stub = this;
+			} catch (IOException e) {
+				System.out.println("Can not connect to the NIO transport");
+				e.printStackTrace();
+			}
+			return;
+		}
 
 		try {
 			System.setProperty("java.security.policy", "client.policy");
-			registry = LocateRegistry.getRegistry(IP);
+			registry = LocateRegistry.getRegistry(IP, Integer.getInteger("os.chat.registry.port", 1099));
 			csm = (ChatServerManagerInterface) registry.lookup("ChatServerManager");
 		} catch (RemoteException e) {
 			System.out.println("Can not locate registry");
@@ -76,26 +168,38 @@ public class ChatClient implements CommandsFromWindow, CommandsFromServer {
 	/**
 	 * Sends a new <code>message</code> to the server to propagate to all clients
 	 * registered to the chat room <code>roomName</code>.
+	 * <p>
+	 * Returns at once: the message is queued and published in the background,
+	 * together with the other messages sent meanwhile. If it can not be
+	 * published, {@link CommandsToWindow#sendFailed(String, List, Exception)}
+	 * is called on the window.
 	 * @param roomName the chat room name
 	 * @param message the message to send to the chat room on the server
 	 */
 	public void sendText(String roomName, String message) {
+		outbound.send(roomName, message);
+	}
 
-		/*
-		 * TODO implement the method to send the message to the server.
-		 */
-
-		try {
-			ChatServerInterface chatServer = (ChatServerInterface) registry.lookup("room " + roomName);
-			if (chatServer != null) {
-				System.out.println(window);
-				chatServer.publish(message, userName);
-			} else {
-				System.out.println("Error : Not connected to chat's server !");
+	/**
+	 * Publishes a batch of messages in a chat room, one by one if the server
+	 * does not support batches. Called by the sender threads of the
+	 * outbound pipeline.
+	 */
+	private void publish(String roomName, List<String> messages) throws RemoteException, NotBoundException {
+		if (batchPublish) {
+			try {
+				callRoom(roomName, chatServer -> chatServer.publishBatch(messages, userName));
+				return;
+			} catch (RemoteException e) {
+				// servers without publishBatch reject the unknown method
+				if (!isUnsupported(e))
+					throw e;
+				Log.info("batches.unsupported", "room", roomName);
+				batchPublish = false;
 			}
-		} catch (RemoteException | NotBoundException e) {
-			System.out.println("Error while sending the message to the chat server");
-			e.printStackTrace();
+		}
+		for (String message : messages) {
+			callRoom(roomName, chatServer -> chatServer.publish(message, userName));
 		}
 	}
 
@@ -128,11 +232,19 @@ public class ChatClient implements CommandsFromWindow, CommandsFromServer {
 	 */
 	public boolean joinChatRoom(String roomName) {
 		try {
-			ChatServerInterface chatServer = (ChatServerInterface) registry.lookup("room " + roomName);
 			if (stub == null) {
 				stub = (CommandsFromServer) UnicastRemoteObject.exportObject(this, 0);
 			}
-			chatServer.register(stub);
+			// always look the room up again when joining, to refresh the cache
+			chatRooms.remove(roomName);
+			// replay the recent history of the room, or what was missed since
+			// the last message received if the room was joined before
+			long last = stream(roomName).getDelivered();
+			long fromSequence = last < 0 ? 0 : last + 1;
+			callRoom(roomName, chatServer -> chatServer.register(stub, fromSequence));
+			joinedRooms.add(roomName);
+			if (COMPRESSION)
+				enableCompression(roomName);
 			return true;
 		} catch (RemoteException | NotBoundException e) {
 			System.out.println("Can not join room :  " + roomName);
@@ -141,6 +253,20 @@ public class ChatClient implements CommandsFromWindow, CommandsFromServer {
 		return false;
 	}
 
+	/**
+	 * Asks a joined room to compress the large messages it sends. Servers
+	 * that do not know compression keep sending them as they are.
+	 */
+	private void enableCompression(String roomName) throws RemoteException, NotBoundException {
+		try {
+			boolean enabled = queryRoom(roomName, chatServer -> chatServer.enableCompression(stub));
+			Log.debug("compression", "room", roomName, "enabled", enabled);
+		} catch (RemoteException e) {
+			if (!isUnsupported(e))
+				throw e;
+		}
+	}
+
 	/**
 	 * Leaves the chat room with the specified name
 	 * <code>roomName</code>. The operation has no effect if has not
@@ -151,11 +277,12 @@ public class ChatClient implements CommandsFromWindow, CommandsFromServer {
 	 */
 	public boolean leaveChatRoom(String roomName) {
 		try {
-			ChatServerInterface chatServer = (ChatServerInterface) registry.lookup("room " + roomName);
 			if (stub == null) {
 				stub = (CommandsFromServer) UnicastRemoteObject.exportObject(this, 0);
 			}
-			chatServer.unregister(stub);
+			joinedRooms.remove(roomName);
+			callRoom(roomName, chatServer -> chatServer.unregister(stub));
+			chatRooms.remove(roomName);
 			return true;
 		} catch (RemoteException | NotBoundException e) {
 			System.out.println("Can not leave room : " + roomName + ", cause : " + e.getMessage());
@@ -175,7 +302,10 @@ public class ChatClient implements CommandsFromWindow, CommandsFromServer {
 		 * TODO implement the method to ask the server to create a new room (second part of the assignment only).
 		 */
 		try {
-			csm.createRoom(roomName);
+			if (!csm.createRoom(roomName)) {
+				System.out.println("Room : " + roomName + " already exists");
+				return false;
+			}
 			System.out.println("Room : " + roomName + " created");
 			return true;
 		} catch (RemoteException e) {
@@ -184,6 +314,228 @@ public class ChatClient implements CommandsFromWindow, CommandsFromServer {
 		}
 	}
 
+	/**
+	 * A remote call made on the stub of a chat room.
+	 */
+	private interface RoomCall {
+		void call(ChatServerInterface chatServer) throws RemoteException;
+	}
+
+	/**
+	 * Retrieves the stub of a chat room from the cache, looking it up if it
+	 * is not cached yet, in the registry of the node hosting the room.
+	 * @param roomName the chat room name
+	 * @return the stub of the chat room
+	 */
+	private ChatServerInterface lookupRoom(String roomName) throws RemoteException, NotBoundException {
+		ChatServerInterface chatServer = chatRooms.get(roomName);
+		if (chatServer == null) {
+			if (connection != null)
+				chatServer = connection.getRoom(roomName);
+			else
+				chatServer = (ChatServerInterface) nodeRegistry(roomName).lookup("room " + roomName);
+			chatRooms.put(roomName, chatServer);
+		}
+		return chatServer;
+	}
+
+	/**
+	 * Asks the server which node hosts a room, and returns the registry of
+	 * that node. Servers that do not shard the rooms (and do not know
+	 * <code>locateRoom</code>) host them all in the registry of the manager.
+	 * If the stub of the manager is stale (the manager was restarted), it is
+	 * looked up again and the call is retried once.
+	 */
+	private Registry nodeRegistry(String roomName) throws RemoteException, NotBoundException {
+		if (locateRooms) {
+			try {
+				String node;
+				try {
+					node = csm.locateRoom(roomName);
+				} catch (NoSuchObjectException | ConnectException e) {
+					Log.info("stub.stale", "manager", "ChatServerManager");
+					csm = (ChatServerManagerInterface) registry.lookup("ChatServerManager");
+					node = csm.locateRoom(roomName);
+				}
+				Registry nodeRegistry = nodeRegistries.get(node);
+				if (nodeRegistry == null) {
+					int colon = node.lastIndexOf(':');
+					nodeRegistry = LocateRegistry.getRegistry(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+					nodeRegistries.put(node, nodeRegistry);
+				}
+				return nodeRegistry;
+			} catch (RemoteException e) {
+				if (!isUnsupported(e))
+					throw e;
+				locateRooms = false;
+			}
+		}
+		return registry;
+	}
+
+	/**
+	 * Tells whether a call was rejected because the server does not know
+	 * the method (an unrecognized method hash) or the class of an argument,
+	 * rather than because of a communication failure.
+	 */
+	private static boolean isUnsupported(RemoteException e) {
+		// the remote side reports the failure in a ServerException; an
+		// UnmarshalException raised here means the connection dropped while
+		// reading the reply, which is a communication failure
+		if (!(e instanceof ServerException) || !(e.getCause() instanceof UnmarshalException))
+			return false;
+		UnmarshalException cause = (UnmarshalException) e.getCause();
+		return String.valueOf(cause.getMessage()).startsWith("unrecognized method hash")
+				|| cause.detail instanceof ClassNotFoundException;
+	}
+
+	/**
+	 * A remote call made on the stub of a chat room, returning a result.
+	 */
+	private interface RoomQuery<T> {
+		T call(ChatServerInterface chatServer) throws RemoteException;
+	}
+
+	/**
+	 * Makes a call returning a result on the cached stub of a chat room. If
+	 * the stub turns out to be stale (the remote object is gone or can not be
+	 * reached), it is dropped from the cache, looked up again and the call is
+	 * retried once. When the room was joined, the client is registered again
+	 * on the new stub first: the room may have failed over to another node,
+	 * which does not know the client yet.
+	 * @param roomName the chat room name
+	 * @param query the call to make
+	 * @return the result of the call
+	 */
+	private <T> T queryRoom(String roomName, RoomQuery<T> query) throws RemoteException, NotBoundException {
+		ChatServerInterface chatServer = lookupRoom(roomName);
+		try {
+			return query.call(chatServer);
+		} catch (NoSuchObjectException | ConnectException e) {
+			Log.info("stub.stale", "room", roomName);
+			chatRooms.remove(roomName, chatServer);
+			ChatServerInterface refreshed = lookupRoom(roomName);
+			if (joinedRooms.contains(roomName))
+				rejoin(roomName, refreshed);
+			return query.call(refreshed);
+		}
+	}
+
+	/**
+	 * Registers the client again in a joined room whose stub was refreshed,
+	 * from the first message not delivered yet. Registering twice on the same
+	 * room is ignored by the server, so this is harmless when the room did
+	 * not actually move.
+	 */
+	private void rejoin(String roomName, ChatServerInterface chatServer) throws RemoteException {
+		long last = stream(roomName).getDelivered();
+		chatServer.register(stub, last < 0 ? 0 : last + 1);
+		Log.info("rejoin", "room", roomName, "from", last + 1);
+		if (COMPRESSION) {
+			try {
+				chatServer.enableCompression(stub);
+			} catch (RemoteException e) {
+				if (!isUnsupported(e))
+					throw e;
+			}
+		}
+	}
+
+	/**
+	 * Makes a call on the cached stub of a chat room, retried as
+	 * {@link #queryRoom(String, RoomQuery)} does.
+	 * @param roomName the chat room name
+	 * @param call the call to make
+	 */
+	private void callRoom(String roomName, RoomCall call) throws RemoteException, NotBoundException {
+		queryRoom(roomName, chatServer -> {
+			call.call(chatServer);
+			return null;
+		});
+	}
+
+	private RoomStream stream(String roomName) {
+		return streams.computeIfAbsent(roomName, name -> new RoomStream());
+	}
+
+	/**
+	 * Sends one cumulative ack to each room whose messages progressed since
+	 * the last ack. Run periodically on the background thread.
+	 */
+	private void acknowledge() {
+		for (String roomName : streams.keySet()) {
+			long sequence = streams.get(roomName).nextAcknowledgement();
+			if (sequence < 0 || !chatRooms.containsKey(roomName))
+				continue;
+			try {
+				callRoom(roomName, chatServer -> chatServer.acknowledge(stub, sequence));
+			} catch (RemoteException | NotBoundException e) {
+				Log.warn("ack.failed", "room", roomName, "cause", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Renews the leases of the client in all the joined rooms with a single
+	 * call, and joins again the rooms in which the lease was lost (e.g. the
+	 * client was unreachable for too long). Run periodically on the
+	 * background thread.
+	 */
+	private void renewLeases() {
+		if (joinedRooms.isEmpty() || csm == null)
+			return;
+		try {
+			for (String roomName : csm.renewLeases(stub, new StringList(joinedRooms))) {
+				if (joinedRooms.contains(roomName)) {
+					Log.info("lease.lost", "room", roomName);
+					joinChatRoom(roomName);
+				}
+			}
+		} catch (RemoteException e) {
+			Log.warn("lease.renew.failed", "cause", e.getMessage());
+		}
+	}
+
+	/**
+	 * Fetches, on the background thread, the messages missing in a room if
+	 * a gap was detected and is not being filled yet.
+	 */
+	private void fillGap(String roomName, RoomStream stream) {
+		long[] gap = stream.startGapFill();
+		if (gap == null)
+			return;
+		background.execute(() -> {
+			List<Message> messages = new Vector<Message>();
+			try {
+				messages = queryRoom(roomName, chatServer -> chatServer.fetch(gap[0], gap[1]));
+			} catch (RemoteException | NotBoundException e) {
+				Log.error("fetch.failed", e, "room", roomName, "from", gap[0], "to", gap[1]);
+			}
+			List<Message> fetched = messages;
+			display(roomName, stream, sink -> stream.endGapFill(fetched, gap[1], sink));
+			fillGap(roomName, stream);
+		});
+	}
+
+	/**
+	 * Hands the messages released by a step of a room stream to the window
+	 * in one batch. The stream stays locked until the batch is handed over,
+	 * so that batches released by different threads keep their order.
+	 */
+	private void display(String roomName, RoomStream stream, Consumer<Consumer<Message>> step) {
+		List<String> lines = new ArrayList<String>();
+		synchronized (stream) {
+			step.accept(message -> lines.add(message.toString()));
+			if (lines.isEmpty())
+				return;
+			try {
+				window.publish(roomName, lines);
+			} catch (NullPointerException e) {
+				Log.error("display.failed", e, "room", roomName);
+			}
+		}
+	}
+
 	/*
 	 * Implementation of the functions from the CommandsFromServer interface.
 	 * See methods description in the interface definition.
@@ -203,13 +555,32 @@ public class ChatClient implements CommandsFromWindow, CommandsFromServer {
 	 */
 	public void receiveMsg(String roomName, String message) throws NullPointerException {
 		try {
-			System.out.println("Message received: " + message);
+			if (Log.sampled(Log.Level.INFO))
+				Log.info("receive", "room", roomName, "message", message);
 			window.publish(roomName, message);
 		} catch (NullPointerException e) {
-			System.out.println("Error in receiveMsg(): " + e.getMessage());
-			e.printStackTrace();
+			Log.error("receive.failed", e, "room", roomName);
 		}
 	}
 
+	/**
+	 * Publish a batch of <code>messages</code> sent by the server in one
+	 * call. The messages are handed to the
+	 * {@link CommandsToWindow#publish(String chatName, List messages)}
+	 * method of the window in sequence order: messages already displayed are
+	 * skipped, and those following a gap wait until the missing ones are
+	 * fetched from the server.
+	 * @param messages the messages to display, oldest first
+	 */
+	public void receiveBatch(List<Message> messages) {
+		if (messages.isEmpty())
+			return;
+		// a batch only holds messages of one room
+		String roomName = messages.get(0).getRoomName();
+		RoomStream stream = stream(roomName);
+		display(roomName, stream, sink -> stream.receive(messages, sink));
+		fillGap(roomName, stream);
+	}
+
 	// This class does not contain a main method. You should launch the whole program by launching ChatClientWindow's main method.
 }
@@ -17,17 +17,23 @@ import javax.swing.JList;
 import javax.swing.JOptionPane;
 import javax.swing.JScrollPane;
 import javax.swing.JTabbedPane;
-import javax.swing.JTextArea;
 import javax.swing.ListSelectionModel;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.JButton;
+import javax.swing.JScrollBar;
 import javax.swing.JTextField;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
@@ -52,6 +58,12 @@ public class ChatClientWindow implements CommandsToWindow {
 	
 	// map of String (room names) to the tabs.
 	private final Map<String, JScrollPane> chats;
+
+	// messages received by the client and not displayed yet, as {room, message}
+	// pairs. They are displayed in batches on the event dispatch thread.
+	private final ConcurrentLinkedQueue<Object[]> pendingMessages = new ConcurrentLinkedQueue<Object[]>();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	private static final int MAX_MESSAGES_PER_FLUSH = 2000;
 	
 	private final CommandsFromWindow client;
 	
@@ -218,13 +230,14 @@ public class ChatClientWindow implements CommandsToWindow {
 							// not possible to join, display error message and return
 							JOptionPane.showMessageDialog(frmChatClient, "Joining chat room "+r+" was not successful.\nCheck client/server interaction.", "Error message", JOptionPane.ERROR_MESSAGE);
 						} else {
-							// joining ok, create a text area
-							JTextArea jta = new JTextArea();
-							jta.setLineWrap(true);
-							jta.setWrapStyleWord(true);
-							jta.setText("You have now joined the discussion on "+r+" and can now send and receive messages!\n");
+							// joining ok, create the list of messages. Only its
+							// visible rows are painted, and each one wraps its
+							// message to the width of the tab
+							ChatTranscript transcript = new ChatTranscript();
+							transcript.append("You have now joined the discussion on "+r+" and can now send and receive messages!");
+							JList<String> jli = WrappingCellRenderer.createList(transcript);
 							// embed it in a scroll pane
-							JScrollPane jsc = new JScrollPane(jta);
+							JScrollPane jsc = new JScrollPane(jli);
 							// disable horizontal scrolling
 							jsc.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
 							// add this to the tabs
@@ -297,16 +310,59 @@ public class ChatClientWindow implements CommandsToWindow {
 
 	// interface from the client
 	public void publish(String chatName, String message) {
-		System.out.println("received message "+message+" for chat room "+chatName);
-		
-		// check that the chat room exists
-		if (! chats.containsKey(chatName)) {
-			JOptionPane.showMessageDialog(frmChatClient, "The client asks for sending a message\nto a non-existing chat room ("+chatName+").", "Error message", JOptionPane.ERROR_MESSAGE);
-		} else {
-			// get the textpane embedded in the jscrollpane embedded in the tab
+		publish(chatName, Collections.singletonList(message));
+	}
+
+	// interface from the client. May be called from any thread: the messages
+	// are only queued, and displayed by the event dispatch thread
+	public void publish(String chatName, List<String> messages) {
+		pendingMessages.add(new Object[] { chatName, messages });
+		if (flushScheduled.compareAndSet(false, true))
+			EventQueue.invokeLater(this::flushMessages);
+	}
+
+	// interface from the client. May be called from any thread
+	public void sendFailed(String chatName, List<String> messages, Exception cause) {
+		EventQueue.invokeLater(new Runnable() {
+			public void run() {
+				JOptionPane.showMessageDialog(frmChatClient, messages.size()+" message(s) could not be sent to "+chatName+":\n"+cause.getMessage(), "Error message", JOptionPane.ERROR_MESSAGE);
+			}
+		});
+	}
+
+	// displays the queued messages, grouped by chat room so that each list
+	// is updated once. Runs on the event dispatch thread
+	@SuppressWarnings("unchecked")
+	private void flushMessages() {
+		flushScheduled.set(false);
+		Map<String, List<String>> batches = new LinkedHashMap<String, List<String>>();
+		int count = 0;
+		Object[] pending;
+		while (count < MAX_MESSAGES_PER_FLUSH && (pending = pendingMessages.poll()) != null) {
+			List<String> messages = (List<String>) pending[1];
+			batches.computeIfAbsent((String) pending[0], k -> new ArrayList<String>()).addAll(messages);
+			count += messages.size();
+		}
+		// leave the rest for the next event, to keep the interface responsive
+		if (!pendingMessages.isEmpty() && flushScheduled.compareAndSet(false, true))
+			EventQueue.invokeLater(this::flushMessages);
+
+		for (Map.Entry<String, List<String>> batch : batches.entrySet()) {
+			String chatName = batch.getKey();
+			// check that the chat room exists
+			if (! chats.containsKey(chatName)) {
+				JOptionPane.showMessageDialog(frmChatClient, "The client asks for sending a message\nto a non-existing chat room ("+chatName+").", "Error message", JOptionPane.ERROR_MESSAGE);
+				continue;
+			}
+			// get the list embedded in the jscrollpane embedded in the tab
 			JScrollPane jsp = chats.get(chatName);
-			JTextArea jta = (JTextArea) jsp.getViewport().getView();
-			jta.setText(jta.getText()+"\n"+message);			
+			JList<String> jli = (JList<String>) jsp.getViewport().getView();
+			// follow the new messages, unless the user scrolled up
+			JScrollBar bar = jsp.getVerticalScrollBar();
+			boolean atBottom = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - jli.getFontMetrics(jli.getFont()).getHeight();
+			((ChatTranscript) jli.getModel()).append(batch.getValue());
+			if (atBottom)
+				jli.ensureIndexIsVisible(jli.getModel().getSize() - 1);
 		}
-	}	
+	}
 }
@@ -0,0 +1,71 @@
+package os.chat.client;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+
+/**
+ * The lines displayed in the tab of a chat room, as the model of a
+ * <code>JList</code>.
+ * <p>
+ * The lines are kept in a ring buffer of at most
+ * <code>os.chat.window.scrollback</code> lines (5000 by default): appending
+ * never copies the transcript, and the oldest lines are dropped once it is
+ * full. The list only renders the visible rows, so the cost of an append
+ * does not depend on the length of the transcript either.
+ * <p>
+ * Like all Swing models, it must only be used on the event dispatch thread.
+ */
+class ChatTranscript extends AbstractListModel<String> {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int SCROLLBACK = Math.max(1, Integer.getInteger("os.chat.window.scrollback", 5000));
+
+	private final String[] lines = new String[SCROLLBACK];
+	private int first = 0; // index of the oldest line in the ring
+	private int size = 0;
+
+	public int getSize() {
+		return size;
+	}
+
+	public String getElementAt(int index) {
+		return lines[(first + index) % lines.length];
+	}
+
+	/**
+	 * Appends one line.
+	 * @param line the line to display
+	 */
+	void append(String line) {
+		append(Collections.singletonList(line));
+	}
+
+	/**
+	 * Appends lines, dropping the oldest ones if the scrollback is full. The
+	 * listeners are notified once for the whole batch.
+	 * @param added the lines to display, in order
+	 */
+	void append(List<String> added) {
+		int count = added.size();
+		if (count == 0)
+			return;
+		int skipped = Math.max(0, count - lines.length); // lines that would not stay
+		int removed = Math.max(0, size + count - skipped - lines.length);
+		if (removed > 0) {
+			for (int i = 0; i < removed; i++) {
+				lines[(first + i) % lines.length] = null;
+			}
+			first = (first + removed) % lines.length;
+			size -= removed;
+			fireIntervalRemoved(this, 0, removed - 1);
+		}
+		int start = size;
+		for (int i = skipped; i < count; i++) {
+			lines[(first + size++) % lines.length] = added.get(i);
+		}
+		fireIntervalAdded(this, start, size - 1);
+	}
+}
@@ -3,6 +3,9 @@ package os.chat.client;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
+
+import os.chat.server.Message;
 
 /**
  * This is the interface between {@link ChatClient} and {@link ChatServer}.
@@ -21,6 +24,23 @@ public interface CommandsFromServer extends Remote {
 	 * @param message the message to display
 	 */
 	public void receiveMsg(String roomName, String message) throws RemoteException;
+
+	/**
+	 * Publish several <code>messages</code> at once, in order. The server uses
+	 * this method to send in one remote call all the messages queued for a
+	 * client within a short window.
+	 * <p>
+	 * The default implementation calls {@link #receiveMsg(String, String)}
+	 * for each message. A client compiled without this method is still
+	 * supported: the server falls back to <code>receiveMsg</code> when the
+	 * batch call is not recognized.
+	 * @param messages the messages to display, oldest first
+	 */
+	public default void receiveBatch(List<Message> messages) throws RemoteException {
+		for (Message message : messages) {
+			receiveMsg(message.getRoomName(), message.toString());
+		}
+	}
 }
 
 
@@ -1,6 +1,6 @@
 package os.chat.client;
 
-
+import java.util.List;
 
 /**
  * This interface must not be modified. It contains the calls from the client to the GUI.
@@ -13,4 +13,29 @@ public interface CommandsToWindow {
 	 * @param message The message to display
 	 */
 	public void publish(String chatName, String message);
+
+	/**
+	 * Publish several messages of a chat room at once. Windows that can
+	 * render a batch in one go should override this; by default each
+	 * message is published in turn.
+	 * @param chatName The name of the chat room
+	 * @param messages The messages to display, in order
+	 */
+	public default void publish(String chatName, List<String> messages) {
+		for (String message : messages) {
+			publish(chatName, message);
+		}
+	}
+
+	/**
+	 * Tells that messages sent in a chat room could not be published. Sends
+	 * are asynchronous, so this may be called from any thread, some time
+	 * after the messages were sent. By default the failure is only printed.
+	 * @param chatName The name of the chat room
+	 * @param messages The messages that were not published
+	 * @param cause The reason of the failure
+	 */
+	public default void sendFailed(String chatName, List<String> messages, Exception cause) {
+		System.out.println(messages.size() + " message(s) could not be sent to " + chatName + ": " + cause.getMessage());
+	}
 }
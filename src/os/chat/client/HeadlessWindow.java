@@ -0,0 +1,49 @@
+package os.chat.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A window without graphical interface, to run {@link ChatClient}s from
+ * programs such as load generators, where a Swing window asking for a user
+ * name is not an option.
+ * <p>
+ * The messages published by the client are only counted, per room, and
+ * passed to an optional observer.
+ */
+public class HeadlessWindow implements CommandsToWindow {
+
+	private final CommandsToWindow observer;
+	private final ConcurrentHashMap<String, AtomicLong> received = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * Creates a window that only counts the messages.
+	 */
+	public HeadlessWindow() {
+		this(null);
+	}
+
+	/**
+	 * Creates a window that counts the messages and passes them on.
+	 * @param observer called for each message, may be <code>null</code>
+	 */
+	public HeadlessWindow(CommandsToWindow observer) {
+		this.observer = observer;
+	}
+
+	public void publish(String chatName, String message) {
+		received.computeIfAbsent(chatName, name -> new AtomicLong()).incrementAndGet();
+		if (observer != null)
+			observer.publish(chatName, message);
+	}
+
+	/**
+	 * Getter method for the number of messages received in a chat room.
+	 * @param chatName the name of the chat room
+	 * @return the number of messages published in the window for that room
+	 */
+	public long getReceived(String chatName) {
+		AtomicLong count = received.get(chatName);
+		return count == null ? 0 : count.get();
+	}
+}
@@ -0,0 +1,120 @@
+package os.chat.client;
+
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import os.chat.log.Log;
+import os.chat.server.Message;
+
+/**
+ * The messages received by a {@link ChatClient} in one chat room, put back
+ * in sequence order.
+ * <p>
+ * Messages arriving in order are handed over at once. A message merged by
+ * the server covers the sequence numbers of all the messages it holds (see
+ * {@link Message#getFirstSequence()}). Those already handed
+ * over (resent by the server) are ignored, and those arriving after a gap
+ * are held back until the gap is filled from the history of the room, or
+ * given up on because the history no longer has the missing messages.
+ */
+class RoomStream {
+
+	/** Maximum number of messages held back while waiting for a gap-fill. */
+	private static final int MAX_HELD = 10000;
+
+	private long delivered = -1; // sequence of the last message handed over
+	private long acknowledged = -1;
+	private boolean filling = false;
+	private final TreeMap<Long, Message> held = new TreeMap<Long, Message>(); // by first sequence
+
+	/**
+	 * Takes messages received from the server.
+	 * @param messages the messages, in any order
+	 * @param sink where the messages are handed over, in sequence order
+	 */
+	synchronized void receive(List<Message> messages, Consumer<Message> sink) {
+		for (Message message : messages) {
+			long sequence = message.getSequence();
+			if (sequence <= delivered)
+				continue;
+			if (delivered < 0 || message.getFirstSequence() <= delivered + 1) {
+				delivered = sequence;
+				sink.accept(message);
+			} else {
+				held.put(message.getFirstSequence(), message);
+			}
+		}
+		release(sink);
+		if (held.size() > MAX_HELD)
+			skipGap(held.firstKey() - 1, sink);
+	}
+
+	/**
+	 * Tells which messages are missing, unless they are already being
+	 * fetched.
+	 * @return the first and last missing sequence numbers, or
+	 * <code>null</code> if there is no gap to fill
+	 */
+	synchronized long[] startGapFill() {
+		if (filling || held.isEmpty())
+			return null;
+		filling = true;
+		return new long[] { delivered + 1, held.firstKey() - 1 };
+	}
+
+	/**
+	 * Takes the messages fetched to fill a gap. Those the server no longer
+	 * had are skipped.
+	 * @param messages the messages fetched
+	 * @param toSequence the last sequence number that was missing
+	 * @param sink where the messages are handed over, in sequence order
+	 */
+	synchronized void endGapFill(List<Message> messages, long toSequence, Consumer<Message> sink) {
+		filling = false;
+		receive(messages, sink);
+		if (delivered < toSequence)
+			skipGap(toSequence, sink);
+	}
+
+	/**
+	 * Gives up on the messages up to <code>sequence</code>.
+	 */
+	private void skipGap(long sequence, Consumer<Message> sink) {
+		Log.warn("messages.lost", "from", delivered + 1, "to", sequence);
+		delivered = sequence;
+		release(sink);
+	}
+
+	/**
+	 * Hands over the held messages that are now in order, and drops those
+	 * already handed over.
+	 */
+	private void release(Consumer<Message> sink) {
+		while (!held.isEmpty() && held.firstKey() <= delivered + 1) {
+			Message message = held.pollFirstEntry().getValue();
+			if (message.getSequence() > delivered) {
+				delivered = message.getSequence();
+				sink.accept(message);
+			}
+		}
+	}
+
+	/**
+	 * @return the sequence number of the last message handed over, -1 if none
+	 */
+	synchronized long getDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * Tells whether an ack is due, and records it as sent.
+	 * @return the sequence number to acknowledge, or -1 if nothing new
+	 */
+	synchronized long nextAcknowledgement() {
+		if (delivered <= acknowledged)
+			return -1;
+		acknowledged = delivered;
+		return delivered;
+	}
+}
@@ -0,0 +1,136 @@
+package os.chat.client;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import os.chat.codec.StringList;
+
+/**
+ * The messages sent by a {@link ChatClient}, on their way to the server.
+ * <p>
+ * {@link #send(String, String)} only queues the message and returns, so the
+ * window never waits for the network. Each room has its own queue, drained
+ * by at most one sender thread at a time so that the messages of a room
+ * are published in order. The messages queued while a call is in flight
+ * are sent together by the next call, in batches of at most
+ * <code>os.chat.send.batchSize</code> messages.
+ */
+class SendPipeline {
+
+	/**
+	 * Publishes a batch of messages in a room.
+	 */
+	interface Transport {
+		void publish(String roomName, List<String> messages) throws Exception;
+	}
+
+	/**
+	 * Told about the messages that could not be published.
+	 */
+	interface FailureListener {
+		void sendFailed(String roomName, List<String> messages, Exception cause);
+	}
+
+	private static final int BATCH_SIZE = Integer.getInteger("os.chat.send.batchSize", 256);
+	private static final int QUEUE_CAPACITY = Integer.getInteger("os.chat.send.queueCapacity", 10000);
+	private static final int MAX_BATCHES_PER_RUN = 4;
+
+	private final Transport transport;
+	private final FailureListener listener;
+	private final ConcurrentHashMap<String, RoomQueue> rooms = new ConcurrentHashMap<String, RoomQueue>();
+	private final ExecutorService senders;
+
+	/**
+	 * Creates a pipeline sending with <code>os.chat.send.threads</code>
+	 * threads (2 by default).
+	 * @param transport makes the remote calls
+	 * @param listener told about failed sends
+	 */
+	SendPipeline(Transport transport, FailureListener listener) {
+		this.transport = transport;
+		this.listener = listener;
+		senders = Executors.newFixedThreadPool(Integer.getInteger("os.chat.send.threads", 2), r -> {
+			Thread thread = new Thread(r, "chat-client-sender");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Queues a message for publishing. If the queue of the room is full, the
+	 * message is rejected through the failure listener.
+	 * @param roomName the room to publish in
+	 * @param message the message
+	 */
+	void send(String roomName, String message) {
+		rooms.computeIfAbsent(roomName, RoomQueue::new).add(message);
+	}
+
+	/**
+	 * The messages waiting to be published in one room, and their sender.
+	 */
+	private class RoomQueue implements Runnable {
+
+		private final String roomName;
+		private final ArrayDeque<String> pending = new ArrayDeque<String>();
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		RoomQueue(String roomName) {
+			this.roomName = roomName;
+		}
+
+		void add(String message) {
+			synchronized (pending) {
+				if (pending.size() >= QUEUE_CAPACITY) {
+					listener.sendFailed(roomName, Collections.singletonList(message),
+							new IllegalStateException("Too many messages waiting to be sent"));
+					return;
+				}
+				pending.addLast(message);
+			}
+			schedule();
+		}
+
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true))
+				senders.execute(this);
+		}
+
+		private List<String> poll() {
+			synchronized (pending) {
+				int size = Math.min(pending.size(), BATCH_SIZE);
+				if (size == 0)
+					return null;
+				List<String> batch = new StringList(size);
+				for (int i = 0; i < size; i++) {
+					batch.add(pending.pollFirst());
+				}
+				return batch;
+			}
+		}
+
+		public void run() {
+			List<String> batch;
+			for (int sent = 0; sent < MAX_BATCHES_PER_RUN && (batch = poll()) != null; sent++) {
+				try {
+					transport.publish(roomName, batch);
+				} catch (Exception e) {
+					listener.sendFailed(roomName, batch, e);
+				}
+			}
+			scheduled.set(false);
+			// a message may have been queued after the last poll
+			boolean more;
+			synchronized (pending) {
+				more = !pending.isEmpty();
+			}
+			if (more)
+				schedule();
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package os.chat.client;
+
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.Insets;
+
+import javax.swing.BorderFactory;
+import javax.swing.JList;
+import javax.swing.JTextArea;
+import javax.swing.JViewport;
+import javax.swing.ListCellRenderer;
+
+/**
+ * Renders the lines of a {@link ChatTranscript}, wrapped at word boundaries
+ * to the width of the list, so that long and multi-line messages are shown
+ * in full. Each row is as tall as its wrapped text.
+ * <p>
+ * The list must track the width of its viewport (see
+ * {@link #createList(ChatTranscript)}), and its rows are measured again
+ * when that width changes.
+ */
+class WrappingCellRenderer extends JTextArea implements ListCellRenderer<String> {
+
+	private static final long serialVersionUID = 1L;
+
+	WrappingCellRenderer() {
+		setLineWrap(true);
+		setWrapStyleWord(true);
+		setBorder(BorderFactory.createEmptyBorder(1, 2, 1, 2));
+	}
+
+	/**
+	 * Creates a list displaying a transcript with this renderer.
+	 * @param transcript the lines to display
+	 * @return the list, to be put in a <code>JScrollPane</code> without
+	 * horizontal scroll bar
+	 */
+	static JList<String> createList(ChatTranscript transcript) {
+		final JList<String> list = new JList<String>(transcript) {
+			private static final long serialVersionUID = 1L;
+			private int measuredWidth = -1;
+
+			@Override
+			public boolean getScrollableTracksViewportWidth() {
+				return true;
+			}
+
+			@Override
+			public void setBounds(int x, int y, int width, int height) {
+				super.setBounds(x, y, width, height);
+				if (width != measuredWidth) {
+					measuredWidth = width;
+					// the list caches the row heights: changing a layout
+					// property makes it measure the rows again, at the new width
+					setFixedCellHeight(0);
+					setFixedCellHeight(-1);
+				}
+			}
+		};
+		list.setCellRenderer(new WrappingCellRenderer());
+		return list;
+	}
+
+	public Component getListCellRendererComponent(JList<? extends String> list, String value, int index,
+			boolean isSelected, boolean cellHasFocus) {
+		setText(value);
+		setFont(list.getFont());
+		setBackground(isSelected ? list.getSelectionBackground() : list.getBackground());
+		setForeground(isSelected ? list.getSelectionForeground() : list.getForeground());
+		// the preferred height of a wrapping text area is the one of its text
+		// at its current width
+		setSize(wrapWidth(list), Short.MAX_VALUE);
+		return this;
+	}
+
+	private static int wrapWidth(JList<?> list) {
+		int width = list.getWidth();
+		if (width <= 0) {
+			// not laid out yet: use the viewport it will fill
+			Container parent = list.getParent();
+			if (parent instanceof JViewport)
+				width = parent.getWidth();
+		}
+		Insets insets = list.getInsets();
+		width -= insets.left + insets.right;
+		return width > 0 ? width : Short.MAX_VALUE;
+	}
+}
@@ -0,0 +1,228 @@
+package os.chat.codec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The primitives of the compact wire format shared by the transports: the
+ * frames of the messages, the lists sent over RMI and the frames of the NIO
+ * transport.
+ * <p>
+ * Non-negative integers (lengths, counts, sequence numbers, timestamps) are
+ * written as varints: 7 bits per byte, least significant group first, the
+ * high bit of each byte telling whether another one follows. A string is
+ * written as the varint of its UTF-8 byte count plus one (0 for
+ * <code>null</code>) followed by its UTF-8 bytes.
+ * <p>
+ * Each primitive comes in two forms, for a <code>ByteBuffer</code> and for
+ * a <code>DataOutput</code> / <code>DataInput</code> (such as the streams
+ * of the serialization), which produce the same bytes.
+ */
+public final class Codec {
+
+	/** Longest varint, for a 64-bit value. */
+	public static final int MAX_VARINT_SIZE = 10;
+
+	/**
+	 * Largest message frame accepted when decoding, checked before
+	 * allocating a buffer for a length read from the wire.
+	 */
+	public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+	private Codec() {
+	}
+
+	/**
+	 * @param value a non-negative value
+	 * @return the number of bytes of its varint
+	 */
+	public static int sizeOf(long value) {
+		int size = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Writes a varint.
+	 * @param buffer the buffer, with at least {@link #sizeOf(long)} bytes
+	 * remaining
+	 * @param value a non-negative value
+	 */
+	public static void putVarint(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	/**
+	 * Writes a varint into an array.
+	 * @param bytes the array
+	 * @param offset the position of the first byte
+	 * @param value a non-negative value
+	 * @return the position after the last byte
+	 */
+	public static int putVarint(byte[] bytes, int offset, long value) {
+		while ((value & ~0x7FL) != 0) {
+			bytes[offset++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		bytes[offset++] = (byte) value;
+		return offset;
+	}
+
+	/**
+	 * Reads a varint written by {@link #putVarint(ByteBuffer, long)}.
+	 * @param buffer the buffer
+	 * @return the value
+	 * @throws IllegalArgumentException if the varint is longer than
+	 * {@link #MAX_VARINT_SIZE} bytes
+	 */
+	public static long getVarint(ByteBuffer buffer) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	/**
+	 * Reads a varint that must fit an <code>int</code>, such as a length.
+	 * @param buffer the buffer
+	 * @return the value
+	 * @throws IllegalArgumentException if the value is out of range
+	 */
+	public static int getLength(ByteBuffer buffer) {
+		long value = getVarint(buffer);
+		if (value > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Invalid length " + value);
+		return (int) value;
+	}
+
+	/**
+	 * Writes a varint.
+	 * @param out the output
+	 * @param value a non-negative value
+	 */
+	public static void writeVarint(DataOutput out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	/**
+	 * Reads a varint written by {@link #writeVarint(DataOutput, long)}.
+	 * @param in the input
+	 * @return the value
+	 */
+	public static long readVarint(DataInput in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new StreamCorruptedException("Malformed varint");
+	}
+
+	/**
+	 * Reads a varint that must fit an <code>int</code>, such as a length.
+	 * @param in the input
+	 * @return the value
+	 */
+	public static int readLength(DataInput in) throws IOException {
+		long value = readVarint(in);
+		if (value > Integer.MAX_VALUE)
+			throw new StreamCorruptedException("Invalid length " + value);
+		return (int) value;
+	}
+
+	/**
+	 * Writes a string.
+	 * @param buffer the buffer, with enough bytes remaining
+	 * @param utf8 the UTF-8 bytes of the string, or <code>null</code>
+	 */
+	public static void putString(ByteBuffer buffer, byte[] utf8) {
+		if (utf8 == null) {
+			buffer.put((byte) 0);
+		} else {
+			putVarint(buffer, utf8.length + 1L);
+			buffer.put(utf8);
+		}
+	}
+
+	/**
+	 * @param utf8 the UTF-8 bytes of a string, or <code>null</code>
+	 * @return the number of bytes written by {@link #putString(ByteBuffer, byte[])}
+	 */
+	public static int sizeOf(byte[] utf8) {
+		return utf8 == null ? 1 : sizeOf(utf8.length + 1L) + utf8.length;
+	}
+
+	/**
+	 * Reads a string written by {@link #putString(ByteBuffer, byte[])}.
+	 * @param buffer the buffer
+	 * @return the string, possibly <code>null</code>
+	 */
+	public static String getString(ByteBuffer buffer) {
+		int length = getLength(buffer) - 1;
+		if (length < 0)
+			return null;
+		if (length > buffer.remaining())
+			throw new BufferUnderflowException();
+		String s;
+		if (buffer.hasArray()) {
+			s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+			buffer.position(buffer.position() + length);
+		} else {
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			s = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return s;
+	}
+
+	/**
+	 * Writes a string.
+	 * @param out the output
+	 * @param s the string, possibly <code>null</code>
+	 */
+	public static void writeString(DataOutput out, String s) throws IOException {
+		if (s == null) {
+			out.write(0);
+		} else {
+			byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+			writeVarint(out, utf8.length + 1L);
+			out.write(utf8);
+		}
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(DataOutput, String)}.
+	 * @param in the input
+	 * @return the string, possibly <code>null</code>
+	 */
+	public static String readString(DataInput in) throws IOException {
+		int length = readLength(in) - 1;
+		if (length < 0)
+			return null;
+		byte[] utf8 = new byte[length];
+		in.readFully(utf8);
+		return new String(utf8, StandardCharsets.UTF_8);
+	}
+}
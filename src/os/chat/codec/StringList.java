@@ -0,0 +1,60 @@
+package os.chat.codec;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Collection;
+import java.util.Vector;
+
+/**
+ * A list of strings, such as room names, serialized with the {@link Codec}:
+ * a varint count followed by the strings, instead of the default
+ * serialization of a <code>Vector</code> (its class descriptor, its whole
+ * backing array and a modified UTF-8 string object per element).
+ * <p>
+ * It is a <code>Vector</code>, so it can be returned or passed wherever the
+ * remote interfaces expect one.
+ */
+public class StringList extends Vector<String> implements Externalizable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Creates an empty list.
+	 */
+	public StringList() {
+	}
+
+	/**
+	 * Creates an empty list.
+	 * @param capacity the initial capacity
+	 */
+	public StringList(int capacity) {
+		super(capacity);
+	}
+
+	/**
+	 * Creates a list holding the given strings.
+	 * @param strings the strings, in the order of their iterator
+	 */
+	public StringList(Collection<String> strings) {
+		super(strings);
+	}
+
+	public synchronized void writeExternal(ObjectOutput out) throws IOException {
+		Codec.writeVarint(out, elementCount);
+		for (int i = 0; i < elementCount; i++) {
+			Codec.writeString(out, (String) elementData[i]);
+		}
+	}
+
+	public synchronized void readExternal(ObjectInput in) throws IOException {
+		int size = Codec.readLength(in);
+		// the capacity grows with what is actually read
+		ensureCapacity(Math.min(size, 1024));
+		for (int i = 0; i < size; i++) {
+			add(Codec.readString(in));
+		}
+	}
+}
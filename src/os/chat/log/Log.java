@@ -0,0 +1,192 @@
+package os.chat.log;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous structured logging, for the events on the message paths.
+ * <p>
+ * A call only checks the level and queues a record in a bounded lock-free
+ * {@link LogRing} (<code>os.chat.log.bufferSize</code> records, 8192 by
+ * default); a single background thread formats the records and writes them
+ * to the standard output. If the writer falls behind, records are dropped
+ * rather than blocking the caller, and the number dropped is logged.
+ * <p>
+ * A record is an event name followed by <code>key=value</code> fields:
+ * <pre>
+ * 2024-01-01 12:00:00.000 INFO  [RMI TCP Connection(3)] register room=sports client=...
+ * </pre>
+ * Records below <code>os.chat.log.level</code> (<code>DEBUG</code>,
+ * <code>INFO</code>, <code>WARN</code> or <code>ERROR</code>; INFO by
+ * default) are ignored. Per-message events are guarded by
+ * {@link #sampled(Level)}, which keeps one in
+ * <code>os.chat.log.sample</code> of them (1000 by default; 1 keeps them
+ * all).
+ */
+public final class Log {
+
+	/**
+	 * The severity of a record.
+	 */
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR
+	}
+
+	private static final Level LEVEL = Level.valueOf(System.getProperty("os.chat.log.level", "INFO").toUpperCase());
+	private static final int SAMPLE = Math.max(1, Integer.getInteger("os.chat.log.sample", 1000));
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+			.withZone(ZoneId.systemDefault());
+
+	private static final LogRing<Record> ring = new LogRing<Record>(Integer.getInteger("os.chat.log.bufferSize", 8192));
+	private static final LongAdder dropped = new LongAdder();
+	private static final PrintStream out = System.out;
+
+	static {
+		Thread writer = new Thread(Log::write, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+		// the records queued just before exiting are written too
+		Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-flush"));
+	}
+
+	private Log() {
+	}
+
+	/**
+	 * @param level a level
+	 * @return <code>true</code> if the records of this level are written,
+	 * to avoid building their fields otherwise
+	 */
+	public static boolean isEnabled(Level level) {
+		return level.compareTo(LEVEL) >= 0;
+	}
+
+	/**
+	 * Decides whether to log one occurrence of a per-message event.
+	 * @param level the level of the event
+	 * @return <code>true</code> for about one call in
+	 * <code>os.chat.log.sample</code> if the level is enabled
+	 */
+	public static boolean sampled(Level level) {
+		return isEnabled(level) && (SAMPLE == 1 || ThreadLocalRandom.current().nextInt(SAMPLE) == 0);
+	}
+
+	public static void debug(String event, Object... fields) {
+		log(Level.DEBUG, event, null, fields);
+	}
+
+	public static void info(String event, Object... fields) {
+		log(Level.INFO, event, null, fields);
+	}
+
+	public static void warn(String event, Object... fields) {
+		log(Level.WARN, event, null, fields);
+	}
+
+	/**
+	 * Logs an error with the stack trace of its cause.
+	 * @param event the name of the event
+	 * @param cause the exception
+	 * @param fields alternating keys and values
+	 */
+	public static void error(String event, Throwable cause, Object... fields) {
+		log(Level.ERROR, event, cause, fields);
+	}
+
+	private static void log(Level level, String event, Throwable cause, Object[] fields) {
+		if (!isEnabled(level))
+			return;
+		Record record = new Record(System.currentTimeMillis(), level, Thread.currentThread().getName(), event,
+				fields, cause);
+		if (!ring.offer(record))
+			dropped.increment();
+	}
+
+	/**
+	 * The writer loop: formats and writes the records as they come, waiting
+	 * a little when there are none.
+	 */
+	private static void write() {
+		while (true) {
+			if (!drain())
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+		}
+	}
+
+	/**
+	 * Writes the queued records.
+	 * @return <code>false</code> if there were none
+	 */
+	private static synchronized boolean drain() {
+		StringBuilder text = new StringBuilder();
+		long lost = dropped.sumThenReset();
+		if (lost > 0)
+			text.append(TIME.format(Instant.now())).append(" WARN  [log-writer] dropped records=").append(lost).append('\n');
+		Record record;
+		while ((record = ring.poll()) != null) {
+			record.format(text);
+			if (text.length() > 64 * 1024) {
+				out.print(text);
+				text.setLength(0);
+			}
+		}
+		if (text.length() == 0)
+			return false;
+		out.print(text);
+		out.flush();
+		return true;
+	}
+
+	/**
+	 * A record waiting for the writer, formatted by it.
+	 */
+	private static final class Record {
+
+		private final long time;
+		private final Level level;
+		private final String thread;
+		private final String event;
+		private final Object[] fields;
+		private final Throwable cause;
+
+		Record(long time, Level level, String thread, String event, Object[] fields, Throwable cause) {
+			this.time = time;
+			this.level = level;
+			this.thread = thread;
+			this.event = event;
+			this.fields = fields;
+			this.cause = cause;
+		}
+
+		void format(StringBuilder text) {
+			text.append(TIME.format(Instant.ofEpochMilli(time))).append(' ').append(level);
+			for (int i = level.name().length(); i < 6; i++) {
+				text.append(' ');
+			}
+			text.append('[').append(thread).append("] ").append(event);
+			for (int i = 0; i + 1 < fields.length; i += 2) {
+				text.append(' ').append(fields[i]).append('=');
+				String value = String.valueOf(fields[i + 1]);
+				if (value.isEmpty() || value.indexOf(' ') >= 0 || value.indexOf('"') >= 0)
+					text.append('"').append(value.replace("\"", "\\\"")).append('"');
+				else
+					text.append(value);
+			}
+			text.append('\n');
+			if (cause != null) {
+				StringWriter trace = new StringWriter();
+				cause.printStackTrace(new PrintWriter(trace));
+				text.append(trace);
+			}
+		}
+	}
+}
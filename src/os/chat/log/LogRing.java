@@ -0,0 +1,73 @@
+package os.chat.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded lock-free queue with many producers and a single consumer.
+ * <p>
+ * Each slot carries a sequence number telling whether it is free for the
+ * producer at a given position or holds the record for the consumer at that
+ * position, so that producers only contend on a compare-and-set of the tail,
+ * and never wait: when the ring is full, {@link #offer(Object)} fails.
+ */
+final class LogRing<E> {
+
+	private final int mask;
+	private final Object[] slots;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	private long head = 0; // only touched by the consumer
+
+	/**
+	 * Creates a ring.
+	 * @param capacity the number of slots, rounded up to a power of two
+	 */
+	LogRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		mask = size - 1;
+		slots = new Object[size];
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Adds an element. May be called from any thread.
+	 * @param element the element
+	 * @return <code>false</code> if the ring is full
+	 */
+	boolean offer(E element) {
+		while (true) {
+			long position = tail.get();
+			int index = (int) position & mask;
+			long available = sequences.get(index) - position;
+			if (available < 0)
+				return false;
+			if (available == 0 && tail.compareAndSet(position, position + 1)) {
+				slots[index] = element;
+				// publishes the element to the consumer
+				sequences.lazySet(index, position + 1);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Removes the oldest element. Called by the consumer thread only.
+	 * @return the element, or <code>null</code> if the ring is empty
+	 */
+	@SuppressWarnings("unchecked")
+	E poll() {
+		int index = (int) head & mask;
+		if (sequences.get(index) != head + 1)
+			return null;
+		E element = (E) slots[index];
+		slots[index] = null;
+		// frees the slot for the producer one lap later
+		sequences.lazySet(index, head + mask + 1);
+		head++;
+		return element;
+	}
+}
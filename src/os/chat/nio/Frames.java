@@ -0,0 +1,240 @@
+package os.chat.nio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.rmi.MarshalException;
+import java.rmi.UnmarshalException;
+import java.util.List;
+import java.util.Vector;
+
+import os.chat.codec.Codec;
+import os.chat.codec.StringList;
+import os.chat.server.Message;
+import os.chat.server.MessageList;
+
+/**
+ * The binary frames exchanged by {@link NioChatServer} and
+ * {@link NioConnection}.
+ * <p>
+ * Every frame is length-prefixed:
+ * <pre>
+ * int length   (number of bytes that follow)
+ * byte op      (one of the constants below)
+ * int request  (request identifier, echoed by the reply; 0 if none)
+ * ...          (payload, depending on op)
+ * </pre>
+ * Strings, byte arrays and lists are written with the {@link Codec}, as
+ * over RMI: varint lengths and counts, UTF-8 strings. Messages are written
+ * as a {@link MessageList}, made of the frames of the
+ * {@link os.chat.server.Message}s, which are encoded once for all the
+ * recipients, without their room name.
+ */
+final class Frames {
+
+	/** Size of the length, op and request fields. */
+	static final int HEADER_SIZE = 4 + 1 + 4;
+
+	/** Largest frame accepted by either side. */
+	static final int MAX_FRAME_SIZE = Codec.MAX_FRAME_SIZE;
+
+	// client to server requests
+	static final byte GET_ROOMS = 1;
+	static final byte GET_ROOMS_PAGE = 2;
+	static final byte GET_ROOM_INFO = 3;
+	static final byte CREATE_ROOM = 4;
+	static final byte JOIN = 5; // room, first sequence to replay (-1 for none)
+	static final byte LEAVE = 6;
+	static final byte PUBLISH = 7;
+	static final byte SEARCH = 8; // room, query, limit
+	static final byte ACK = 9; // room, sequence
+	static final byte FETCH = 10; // room, first and last sequence
+	static final byte RENEW_LEASES = 11; // rooms
+	static final byte PUBLISH_BATCH = 12; // room, publisher, messages
+	static final byte LOCATE_ROOM = 13;
+	static final byte METRICS = 14; // replied with the serialized snapshot
+	static final byte ROOM_METRICS = 15; // room, replied with the serialized snapshot
+
+	// server to client
+	static final byte REPLY = 64;
+	static final byte ERROR = 65;
+	static final byte MESSAGE = 66;
+	static final byte BATCH = 67;
+
+	private Frames() {
+	}
+
+	/**
+	 * Builds one frame into a growable buffer.
+	 */
+	static class Builder {
+
+		private ByteBuffer buffer;
+
+		/**
+		 * Starts a frame.
+		 * @param op the operation
+		 * @param request the request identifier, 0 if none
+		 */
+		Builder(byte op, int request) {
+			buffer = ByteBuffer.allocate(64);
+			buffer.putInt(0).put(op).putInt(request);
+		}
+
+		private void ensure(int bytes) {
+			if (buffer.remaining() < bytes) {
+				ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+				buffer.flip();
+				larger.put(buffer);
+				buffer = larger;
+			}
+		}
+
+		Builder putByte(int b) {
+			ensure(1);
+			buffer.put((byte) b);
+			return this;
+		}
+
+		Builder putInt(int i) {
+			ensure(4);
+			buffer.putInt(i);
+			return this;
+		}
+
+		Builder putLong(long l) {
+			ensure(8);
+			buffer.putLong(l);
+			return this;
+		}
+
+		Builder putDouble(double d) {
+			ensure(8);
+			buffer.putDouble(d);
+			return this;
+		}
+
+		Builder putVarint(long l) {
+			ensure(Codec.MAX_VARINT_SIZE);
+			Codec.putVarint(buffer, l);
+			return this;
+		}
+
+		Builder putBytes(byte[] bytes) {
+			putVarint(bytes.length);
+			ensure(bytes.length);
+			buffer.put(bytes);
+			return this;
+		}
+
+		Builder putString(String s) {
+			byte[] utf8 = s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+			ensure(Codec.sizeOf(utf8));
+			Codec.putString(buffer, utf8);
+			return this;
+		}
+
+		Builder putStrings(List<String> strings) {
+			putVarint(strings.size());
+			for (String s : strings) {
+				putString(s);
+			}
+			return this;
+		}
+
+		Builder putMessages(List<Message> messages) {
+			return putBytes(MessageList.encode(messages));
+		}
+
+		/**
+		 * Ends the frame.
+		 * @return the frame, ready to be written
+		 */
+		ByteBuffer build() {
+			buffer.putInt(0, buffer.position() - 4);
+			buffer.flip();
+			return buffer;
+		}
+	}
+
+	/**
+	 * Reads a string written by {@link Builder#putString(String)}.
+	 * @param buffer the payload of a frame
+	 * @return the string, possibly <code>null</code>
+	 */
+	static String getString(ByteBuffer buffer) {
+		return Codec.getString(buffer);
+	}
+
+	/**
+	 * Reads a byte array written by {@link Builder#putBytes(byte[])}.
+	 * @param buffer the payload of a frame
+	 * @return the bytes
+	 */
+	static byte[] getBytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[Codec.getLength(buffer)];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Reads messages written by {@link Builder#putMessages(List)}.
+	 * @param buffer the payload of a frame
+	 * @return the messages
+	 */
+	static MessageList getMessages(ByteBuffer buffer) throws UnmarshalException {
+		try {
+			return MessageList.decode(getBytes(buffer));
+		} catch (IOException e) {
+			throw new UnmarshalException("Invalid messages", e);
+		}
+	}
+
+	/**
+	 * Serializes a rarely exchanged object, such as a metrics snapshot, the
+	 * way RMI would.
+	 * @param object the object
+	 * @return its serialized form
+	 */
+	static byte[] serialize(Serializable object) throws MarshalException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(object);
+		} catch (IOException e) {
+			throw new MarshalException("Can not serialize " + object.getClass().getName(), e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Reads an object written by {@link #serialize(Serializable)}.
+	 * @param bytes its serialized form
+	 * @return the object
+	 */
+	static Object deserialize(byte[] bytes) throws UnmarshalException {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			return in.readObject();
+		} catch (IOException | ClassNotFoundException e) {
+			throw new UnmarshalException("Can not deserialize the reply", e);
+		}
+	}
+
+	/**
+	 * Reads a list written by {@link Builder#putStrings(List)}.
+	 * @param buffer the payload of a frame
+	 * @return the strings
+	 */
+	static Vector<String> getStrings(ByteBuffer buffer) {
+		int size = Codec.getLength(buffer);
+		Vector<String> strings = new StringList(Math.min(size, buffer.remaining()));
+		for (int i = 0; i < size; i++) {
+			strings.add(getString(buffer));
+		}
+		return strings;
+	}
+}
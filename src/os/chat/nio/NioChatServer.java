@@ -0,0 +1,550 @@
+package os.chat.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import os.chat.log.Log;
+import os.chat.server.ChatServer;
+import os.chat.server.ChatServerInterface;
+import os.chat.server.ChatServerManager;
+import os.chat.server.Message;
+import os.chat.server.RoomInfo;
+
+/**
+ * A non-blocking TCP transport for the chat, running alongside RMI.
+ * <p>
+ * A single selector thread serves all the clients. Each client keeps one
+ * persistent connection, multiplexed across all the rooms it joined, and
+ * exchanges length-prefixed binary {@link Frames} with the server. Requests
+ * map one to one to the methods of
+ * {@link os.chat.server.ChatServerManagerInterface} and
+ * {@link os.chat.server.ChatServerInterface}, and the room messages are
+ * pushed to the client on the same connection, so the client needs no
+ * inbound port.
+ * <p>
+ * Requests are handled on the selector thread, since publishing only queues
+ * the message; room creation, which binds the room in the RMI registry,
+ * searches, the requests forwarded to the other nodes when the rooms are
+ * sharded, and publishing when it waits for the standby of the room
+ * (synchronous replication) are handed to a pool of
+ * <code>os.chat.nio.workers</code> worker threads (8 by default). The
+ * requests handed over about one room are queued and handled one after the
+ * other, in order, while those about different rooms run concurrently.
+ * <p>
+ * The requests about a room hosted by another node (sharded, or taken over
+ * by its standby) are forwarded to that node by the worker threads, on the
+ * RMI stub of the room: the connection is then exported as an RMI client,
+ * and the node hosting the room pushes its messages through this node.
+ * <p>
+ * The transport is started by {@link ChatServerManager#main(String[])} when
+ * the <code>os.chat.transport</code> system property is <code>nio</code>,
+ * on the port given by <code>os.chat.nio.port</code> (1100 by default).
+ */
+public class NioChatServer implements Runnable {
+
+	private final ChatServerManager manager;
+	private final Selector selector;
+	private final ServerSocketChannel serverChannel;
+	private final ConcurrentLinkedQueue<ServerConnection> pendingWrites = new ConcurrentLinkedQueue<ServerConnection>();
+	private final ExecutorService workers = Executors.newFixedThreadPool(Integer.getInteger("os.chat.nio.workers", 8), r -> {
+		Thread thread = new Thread(r, "nio-worker");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * The requests handed to the workers about each room, handled in order.
+	 */
+	private final ConcurrentHashMap<String, RoomQueue> roomQueues = new ConcurrentHashMap<String, RoomQueue>();
+
+	/**
+	 * The stubs of the rooms hosted by the other nodes, when the rooms are
+	 * sharded.
+	 */
+	private final ConcurrentHashMap<String, ChatServerInterface> remoteRooms = new ConcurrentHashMap<String, ChatServerInterface>();
+	private volatile boolean running = true;
+
+	/**
+	 * Opens the listening socket.
+	 * @param manager the manager of the rooms served
+	 * @param port the TCP port to listen on
+	 */
+	public NioChatServer(ChatServerManager manager, int port) throws IOException {
+		this.manager = manager;
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Starts the selector thread.
+	 */
+	public void start() {
+		Thread t = new Thread(this, "nio-selector");
+		t.setDaemon(true);
+		t.start();
+		System.out.println("NIO transport listening on " + serverChannel.socket().getLocalPort());
+	}
+
+	/**
+	 * Stops the selector thread and closes every connection.
+	 */
+	public void stop() throws IOException {
+		running = false;
+		selector.wakeup();
+		serverChannel.close();
+		workers.shutdown();
+	}
+
+	/**
+	 * Asks the selector thread to write the frames queued for a connection.
+	 * @param connection the connection with pending frames
+	 */
+	void requestWrite(ServerConnection connection) {
+		if (connection.writeScheduled.compareAndSet(false, true)) {
+			pendingWrites.add(connection);
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * The selector loop.
+	 */
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+				ServerConnection pending;
+				while ((pending = pendingWrites.poll()) != null) {
+					pending.writeScheduled.set(false);
+					write(pending);
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						ServerConnection connection = (ServerConnection) key.attachment();
+						if (key.isReadable())
+							read(connection);
+						if (key.isValid() && key.isWritable())
+							write(connection);
+					}
+				}
+			} catch (IOException e) {
+				System.out.println("Error in NIO selector loop");
+				e.printStackTrace();
+			}
+		}
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof ServerConnection)
+				close((ServerConnection) key.attachment());
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null)
+			return;
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		key.attach(new ServerConnection(this, channel, key));
+	}
+
+	private void write(ServerConnection connection) {
+		if (connection.isClosed())
+			return;
+		try {
+			boolean done = connection.flush();
+			connection.key.interestOps(done ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		} catch (IOException e) {
+			close(connection);
+		}
+	}
+
+	private void read(ServerConnection connection) {
+		try {
+			if (connection.channel.read(connection.inbound) < 0) {
+				close(connection);
+				return;
+			}
+			ByteBuffer in = connection.inbound;
+			in.flip();
+			while (in.remaining() >= 4) {
+				int length = in.getInt(in.position());
+				if (length < Frames.HEADER_SIZE - 4 || length > Frames.MAX_FRAME_SIZE)
+					throw new IOException("Invalid frame length " + length);
+				if (in.remaining() < 4 + length) {
+					if (in.capacity() < 4 + length) {
+						ByteBuffer larger = ByteBuffer.allocate(4 + length);
+						larger.put(in);
+						connection.inbound = larger;
+						return;
+					}
+					break;
+				}
+				ByteBuffer frame = in.slice();
+				frame.limit(4 + length);
+				in.position(in.position() + 4 + length);
+				frame.getInt();
+				dispatch(connection, frame.get(), frame.getInt(), frame);
+			}
+			in.compact();
+		} catch (IOException e) {
+			close(connection);
+		}
+	}
+
+	private void close(ServerConnection connection) {
+		connection.close();
+		connection.key.cancel();
+		try {
+			connection.channel.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		final List<String> forwarded = new ArrayList<String>();
+		for (String roomName : connection.rooms) {
+			ChatServer chatRoom = manager.getChatRoom(roomName);
+			if (chatRoom == null) {
+				forwarded.add(roomName);
+				continue;
+			}
+			try {
+				chatRoom.unregister(connection);
+			} catch (RemoteException e) {
+				// local call, never thrown
+			}
+		}
+		if (forwarded.isEmpty() || workers.isShutdown()) {
+			connection.unexport();
+			return;
+		}
+		// leave the rooms of the other nodes off the selector thread
+		workers.execute(() -> {
+			for (String roomName : forwarded) {
+				try {
+					lookupRoom(roomName).unregister(connection);
+				} catch (RemoteException | NotBoundException e) {
+					// the room evicts the connection when it fails to call it
+				}
+			}
+			connection.unexport();
+		});
+	}
+
+	/**
+	 * Handles one request and sends its reply.
+	 */
+	private void dispatch(final ServerConnection connection, byte op, final int request, ByteBuffer payload) {
+		try {
+			Frames.Builder reply = new Frames.Builder(Frames.REPLY, request);
+			switch (op) {
+			// the requests below are forwarded to the other nodes when the
+			// rooms are sharded: off the selector thread, a slow node must not
+			// stall every client
+			case Frames.GET_ROOMS:
+				offload(connection, request, results -> results.putStrings(manager.getRoomsList()));
+				return;
+			case Frames.GET_ROOMS_PAGE: {
+				String prefix = Frames.getString(payload);
+				int offset = payload.getInt();
+				int limit = payload.getInt();
+				offload(connection, request, results -> results.putStrings(manager.getRoomsList(prefix, offset, limit)));
+				return;
+			}
+			case Frames.GET_ROOM_INFO: {
+				String roomName = Frames.getString(payload);
+				offload(connection, request, results -> {
+					RoomInfo info = manager.getRoomInfo(roomName);
+					if (info == null) {
+						results.putByte(0);
+					} else {
+						results.putByte(1).putString(info.getRoomName()).putInt(info.getMemberCount())
+								.putLong(info.getMessageCount()).putDouble(info.getMessageRate());
+					}
+				});
+				return;
+			}
+			case Frames.CREATE_ROOM: {
+				String newRoom = Frames.getString(payload);
+				offload(connection, request, results -> {
+					results.putByte(manager.createRoom(newRoom, connection.getHost()) ? 1 : 0);
+				});
+				return;
+			}
+			case Frames.SEARCH: {
+				String searchedRoom = Frames.getString(payload);
+				String query = Frames.getString(payload);
+				int limit = payload.getInt();
+				// off the selector thread, a search may visit many segments
+				offload(connection, request, results -> {
+					Vector<Message> found = manager.search(searchedRoom, query, limit);
+					if (found == null) {
+						results.putByte(0);
+					} else {
+						results.putByte(1).putMessages(found);
+					}
+				});
+				return;
+			}
+			case Frames.JOIN: {
+				String roomName = Frames.getString(payload);
+				long fromSequence = payload.getLong();
+				onRoom(connection, request, roomName, false, (chatRoom, results) -> {
+					if (fromSequence < 0)
+						chatRoom.register(connection);
+					else
+						chatRoom.register(connection, fromSequence);
+					connection.rooms.add(roomName);
+				});
+				return;
+			}
+			case Frames.LEAVE: {
+				String roomName = Frames.getString(payload);
+				onRoom(connection, request, roomName, false, (chatRoom, results) -> {
+					chatRoom.unregister(connection);
+					connection.rooms.remove(roomName);
+				});
+				return;
+			}
+			case Frames.PUBLISH: {
+				String roomName = Frames.getString(payload);
+				String publisher = Frames.getString(payload);
+				String message = Frames.getString(payload);
+				onRoom(connection, request, roomName, true, (chatRoom, results) -> {
+					if (chatRoom instanceof ChatServer)
+						((ChatServer) chatRoom).publish(message, publisher, connection.getHost());
+					else
+						chatRoom.publish(message, publisher);
+				});
+				return;
+			}
+			case Frames.PUBLISH_BATCH: {
+				String roomName = Frames.getString(payload);
+				String publisher = Frames.getString(payload);
+				Vector<String> messages = Frames.getStrings(payload);
+				onRoom(connection, request, roomName, true, (chatRoom, results) -> {
+					if (chatRoom instanceof ChatServer)
+						((ChatServer) chatRoom).publishBatch(messages, publisher, connection.getHost());
+					else
+						chatRoom.publishBatch(messages, publisher);
+				});
+				return;
+			}
+			case Frames.METRICS:
+				// off the selector thread, the snapshot covers every room
+				offload(connection, request, results -> results.putBytes(Frames.serialize(manager.getMetrics())));
+				return;
+			case Frames.ROOM_METRICS: {
+				String roomName = Frames.getString(payload);
+				offload(connection, request,
+						results -> results.putBytes(Frames.serialize(manager.getRoomMetrics(roomName))));
+				return;
+			}
+			case Frames.LOCATE_ROOM:
+				reply.putString(manager.locateRoom(Frames.getString(payload)));
+				break;
+			case Frames.RENEW_LEASES: {
+				Vector<String> roomNames = Frames.getStrings(payload);
+				offload(connection, request, results -> results.putStrings(manager.renewLeases(connection, roomNames)));
+				return;
+			}
+			case Frames.ACK: {
+				String roomName = Frames.getString(payload);
+				long sequence = payload.getLong();
+				onRoom(connection, request, roomName, false, (chatRoom, results) -> chatRoom.acknowledge(connection, sequence));
+				return;
+			}
+			case Frames.FETCH: {
+				String roomName = Frames.getString(payload);
+				long fromSequence = payload.getLong();
+				long toSequence = payload.getLong();
+				onRoom(connection, request, roomName, false,
+						(chatRoom, results) -> results.putMessages(chatRoom.fetch(fromSequence, toSequence)));
+				return;
+			}
+			default:
+				throw new RemoteException("Unknown operation " + op);
+			}
+			reply(connection, reply);
+		} catch (Exception e) {
+			reply(connection, new Frames.Builder(Frames.ERROR, request).putString(e.getMessage()));
+		}
+	}
+
+	/**
+	 * A request handled by a worker thread.
+	 */
+	private interface Request {
+
+		/**
+		 * Handles the request.
+		 * @param reply the reply, to fill with the results
+		 */
+		void handle(Frames.Builder reply) throws Exception;
+	}
+
+	/**
+	 * Hands a request that may block over to the worker threads, which send
+	 * its reply.
+	 */
+	private void offload(ServerConnection connection, int request, Request handler) {
+		workers.execute(task(connection, request, handler));
+	}
+
+	/**
+	 * Hands a request about a room over to the worker threads, after the
+	 * requests about the same room handed over before it.
+	 */
+	private void offload(ServerConnection connection, int request, String roomName, Request handler) {
+		roomQueues.computeIfAbsent(roomName, name -> new RoomQueue()).add(task(connection, request, handler));
+	}
+
+	private Runnable task(final ServerConnection connection, final int request, final Request handler) {
+		return new Runnable() {
+			public void run() {
+				Frames.Builder reply = new Frames.Builder(Frames.REPLY, request);
+				try {
+					handler.handle(reply);
+				} catch (Exception e) {
+					reply = new Frames.Builder(Frames.ERROR, request).putString(e.getMessage());
+				}
+				reply(connection, reply);
+			}
+		};
+	}
+
+	/**
+	 * The requests about one room waiting for a worker thread. At most one
+	 * worker handles them at a time.
+	 */
+	private class RoomQueue implements Runnable {
+
+		private final ArrayDeque<Runnable> pending = new ArrayDeque<Runnable>();
+		private boolean scheduled = false;
+
+		void add(Runnable task) {
+			synchronized (pending) {
+				pending.addLast(task);
+				if (scheduled)
+					return;
+				scheduled = true;
+			}
+			workers.execute(this);
+		}
+
+		public void run() {
+			Runnable task;
+			while (true) {
+				synchronized (pending) {
+					task = pending.pollFirst();
+					if (task == null) {
+						scheduled = false;
+						return;
+					}
+				}
+				task.run();
+			}
+		}
+	}
+
+	/**
+	 * A request about a room, handled on the room hosted here or on its
+	 * stub on the node owning it.
+	 */
+	private interface RoomRequest {
+
+		/**
+		 * Handles the request.
+		 * @param chatRoom the room
+		 * @param reply the reply, to fill with the results
+		 */
+		void handle(ChatServerInterface chatRoom, Frames.Builder reply) throws Exception;
+	}
+
+	/**
+	 * Handles a request about a room. If the room is hosted here, the
+	 * request is handled on the selector thread, or by the worker threads
+	 * for a publication waiting for the standby of the room. Otherwise it is
+	 * forwarded by the worker threads to the node owning the room, to which
+	 * the connection is exported so that it receives the messages of the
+	 * room.
+	 * @param publishing whether the request publishes messages
+	 */
+	private void onRoom(final ServerConnection connection, final int request, final String roomName,
+			boolean publishing, final RoomRequest handler) throws Exception {
+		ChatServer chatRoom = manager.getChatRoom(roomName);
+		if (chatRoom != null && !(publishing && chatRoom.isReplicationSync())) {
+			Frames.Builder reply = new Frames.Builder(Frames.REPLY, request);
+			handler.handle(chatRoom, reply);
+			reply(connection, reply);
+			return;
+		}
+		offload(connection, request, roomName, results -> {
+			ChatServerInterface room = lookupRoom(roomName);
+			if (room instanceof ChatServer) {
+				handler.handle(room, results);
+				return;
+			}
+			connection.export();
+			try {
+				handler.handle(room, results);
+			} catch (NoSuchObjectException | ConnectException e) {
+				// the room moved or its node failed: look it up again
+				remoteRooms.remove(roomName, room);
+				handler.handle(lookupRoom(roomName), results);
+			}
+		});
+	}
+
+	/**
+	 * Getter method for a room hosted here, or for the stub of a room
+	 * hosted by another node, looked up the first time.
+	 */
+	private ChatServerInterface lookupRoom(String roomName) throws RemoteException, NotBoundException {
+		ChatServer chatRoom = manager.getChatRoom(roomName);
+		if (chatRoom != null)
+			return chatRoom;
+		ChatServerInterface stub = remoteRooms.get(roomName);
+		if (stub == null) {
+			stub = manager.lookupRoom(roomName);
+			if (!(stub instanceof ChatServer))
+				remoteRooms.put(roomName, stub);
+		}
+		return stub;
+	}
+
+	private void reply(ServerConnection connection, Frames.Builder reply) {
+		try {
+			connection.send(reply.build());
+		} catch (RemoteException e) {
+			Log.warn("reply.failed", "client", connection, "cause", e.getMessage());
+		}
+	}
+}
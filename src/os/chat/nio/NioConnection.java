@@ -0,0 +1,290 @@
+package os.chat.nio;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import os.chat.client.CommandsFromServer;
+import os.chat.server.ChatServerInterface;
+import os.chat.server.ChatServerManagerInterface;
+import os.chat.server.Message;
+import os.chat.server.RoomInfo;
+import os.chat.server.metrics.MetricsSnapshot;
+
+/**
+ * The client side of the NIO transport: one persistent connection to a
+ * {@link NioChatServer}, shared by all the rooms of a client.
+ * <p>
+ * The connection hands out local implementations of
+ * {@link ChatServerManagerInterface} and {@link ChatServerInterface} that
+ * turn every call into a request frame and wait for its reply, so that the
+ * client code is the same as with RMI. The messages pushed by the server are
+ * passed, in order, to the {@link CommandsFromServer} given at construction,
+ * from a single reader thread.
+ * <p>
+ * A request that gets no reply within <code>os.chat.nio.timeoutMs</code>
+ * milliseconds (10000 by default) fails with a <code>RemoteException</code>.
+ */
+public class NioConnection {
+
+	private static final long TIMEOUT_MS = Long.getLong("os.chat.nio.timeoutMs", 10000);
+
+	private final SocketChannel channel;
+	private final CommandsFromServer listener;
+	private final AtomicInteger nextRequest = new AtomicInteger();
+	private final ConcurrentHashMap<Integer, CompletableFuture<ByteBuffer>> pending =
+			new ConcurrentHashMap<Integer, CompletableFuture<ByteBuffer>>();
+	private final Manager manager = new Manager();
+	private volatile boolean closed = false;
+
+	/**
+	 * Connects to a chat server and starts reading its frames.
+	 * @param host the host of the server
+	 * @param port the port of its NIO transport
+	 * @param listener the receiver of the room messages
+	 */
+	public NioConnection(String host, int port, CommandsFromServer listener) throws IOException {
+		this.listener = listener;
+		channel = SocketChannel.open(new InetSocketAddress(host, port));
+		channel.socket().setTcpNoDelay(true);
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				read();
+			}
+		}, "nio-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * @return the room manager reached through this connection
+	 */
+	public ChatServerManagerInterface getManager() {
+		return manager;
+	}
+
+	/**
+	 * Returns the chat room <code>roomName</code> reached through this
+	 * connection. The room is not checked for existence until the first
+	 * call.
+	 * @param roomName the name of the chat room
+	 * @return the chat room
+	 */
+	public ChatServerInterface getRoom(String roomName) {
+		return new Room(roomName);
+	}
+
+	/**
+	 * Closes the connection. The pending and further calls fail.
+	 */
+	public void close() {
+		closed = true;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		for (CompletableFuture<ByteBuffer> reply : pending.values()) {
+			reply.completeExceptionally(new ConnectException("Connection closed"));
+		}
+	}
+
+	private Frames.Builder request(byte op) {
+		int request = nextRequest.incrementAndGet();
+		if (request == 0)
+			request = nextRequest.incrementAndGet();
+		return new Frames.Builder(op, request);
+	}
+
+	/**
+	 * Sends a request and waits for its reply.
+	 * @return the payload of the reply
+	 */
+	private ByteBuffer call(Frames.Builder frame) throws RemoteException {
+		ByteBuffer buffer = frame.build();
+		int request = buffer.getInt(5);
+		CompletableFuture<ByteBuffer> reply = new CompletableFuture<ByteBuffer>();
+		pending.put(request, reply);
+		try {
+			if (closed)
+				throw new ConnectException("Connection closed");
+			synchronized (channel) {
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+			return reply.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch (IOException e) {
+			close();
+			throw new ConnectException("Can not send request", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RemoteException)
+				throw (RemoteException) e.getCause();
+			throw new RemoteException("Request failed", e.getCause());
+		} catch (TimeoutException | InterruptedException e) {
+			throw new RemoteException("No reply from the server", e);
+		} finally {
+			pending.remove(request);
+		}
+	}
+
+	/**
+	 * The reader loop: completes the pending calls and passes the messages to
+	 * the listener.
+	 */
+	private void read() {
+		try {
+			DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+			while (true) {
+				int length = in.readInt();
+				if (length < Frames.HEADER_SIZE - 4 || length > Frames.MAX_FRAME_SIZE)
+					throw new IOException("Invalid frame length " + length);
+				byte[] bytes = new byte[length];
+				in.readFully(bytes);
+				ByteBuffer frame = ByteBuffer.wrap(bytes);
+				byte op = frame.get();
+				int request = frame.getInt();
+				switch (op) {
+				case Frames.REPLY:
+					complete(request, frame, null);
+					break;
+				case Frames.ERROR:
+					complete(request, null, new RemoteException(Frames.getString(frame)));
+					break;
+				case Frames.MESSAGE:
+					listener.receiveMsg(Frames.getString(frame), Frames.getString(frame));
+					break;
+				case Frames.BATCH:
+					listener.receiveBatch(Frames.getMessages(frame));
+					break;
+				default:
+					System.out.println("Unknown frame " + op + " from the server");
+				}
+			}
+		} catch (IOException e) {
+			if (!closed)
+				System.out.println("Connection to the server lost: " + e.getMessage());
+		} finally {
+			close();
+		}
+	}
+
+	private void complete(int request, ByteBuffer payload, RemoteException error) {
+		CompletableFuture<ByteBuffer> reply = pending.get(request);
+		if (reply == null)
+			return;
+		if (error != null)
+			reply.completeExceptionally(error);
+		else
+			reply.complete(payload);
+	}
+
+	/**
+	 * The room manager, reached through the connection.
+	 */
+	private class Manager implements ChatServerManagerInterface {
+
+		public Vector<String> getRoomsList() throws RemoteException {
+			return Frames.getStrings(call(request(Frames.GET_ROOMS)));
+		}
+
+		public Vector<String> getRoomsList(String prefix, int offset, int limit) throws RemoteException {
+			return Frames.getStrings(call(request(Frames.GET_ROOMS_PAGE).putString(prefix).putInt(offset).putInt(limit)));
+		}
+
+		public String locateRoom(String roomName) throws RemoteException {
+			return Frames.getString(call(request(Frames.LOCATE_ROOM).putString(roomName)));
+		}
+
+		public RoomInfo getRoomInfo(String roomName) throws RemoteException {
+			ByteBuffer reply = call(request(Frames.GET_ROOM_INFO).putString(roomName));
+			if (reply.get() == 0)
+				return null;
+			return new RoomInfo(Frames.getString(reply), reply.getInt(), reply.getLong(), reply.getDouble());
+		}
+
+		public Vector<String> renewLeases(CommandsFromServer client, Vector<String> roomNames) throws RemoteException {
+			return Frames.getStrings(call(request(Frames.RENEW_LEASES).putStrings(roomNames)));
+		}
+
+		public Vector<Message> search(String roomName, String query, int limit) throws RemoteException {
+			ByteBuffer reply = call(request(Frames.SEARCH).putString(roomName).putString(query).putInt(limit));
+			if (reply.get() == 0)
+				return null;
+			return Frames.getMessages(reply);
+		}
+
+		public MetricsSnapshot getMetrics() throws RemoteException {
+			return (MetricsSnapshot) Frames.deserialize(Frames.getBytes(call(request(Frames.METRICS))));
+		}
+
+		public MetricsSnapshot getRoomMetrics(String roomName) throws RemoteException {
+			ByteBuffer reply = call(request(Frames.ROOM_METRICS).putString(roomName));
+			return (MetricsSnapshot) Frames.deserialize(Frames.getBytes(reply));
+		}
+
+		public boolean createRoom(String roomName) throws RemoteException {
+			return call(request(Frames.CREATE_ROOM).putString(roomName)).get() != 0;
+		}
+	}
+
+	/**
+	 * A chat room, reached through the connection. The client given to
+	 * {@link #register(CommandsFromServer)} is ignored: the messages of every
+	 * room are passed to the listener of the connection.
+	 */
+	private class Room implements ChatServerInterface {
+
+		private final String roomName;
+
+		Room(String roomName) {
+			this.roomName = roomName;
+		}
+
+		public void publish(String message, String publisher) throws RemoteException {
+			call(request(Frames.PUBLISH).putString(roomName).putString(publisher).putString(message));
+		}
+
+		public void publishBatch(List<String> messages, String publisher) throws RemoteException {
+			call(request(Frames.PUBLISH_BATCH).putString(roomName).putString(publisher).putStrings(messages));
+		}
+
+		public void register(CommandsFromServer client) throws RemoteException {
+			call(request(Frames.JOIN).putString(roomName).putLong(-1));
+		}
+
+		public void register(CommandsFromServer client, long fromSequence) throws RemoteException {
+			call(request(Frames.JOIN).putString(roomName).putLong(fromSequence));
+		}
+
+		public void unregister(CommandsFromServer client) throws RemoteException {
+			call(request(Frames.LEAVE).putString(roomName));
+		}
+
+		public void acknowledge(CommandsFromServer client, long sequence) throws RemoteException {
+			call(request(Frames.ACK).putString(roomName).putLong(sequence));
+		}
+
+		public boolean enableCompression(CommandsFromServer client) throws RemoteException {
+			// the frames of this transport are not compressed
+			return false;
+		}
+
+		public Vector<Message> fetch(long fromSequence, long toSequence) throws RemoteException {
+			return Frames.getMessages(call(request(Frames.FETCH).putString(roomName).putLong(fromSequence).putLong(toSequence)));
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package os.chat.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import os.chat.client.CommandsFromServer;
+import os.chat.server.Message;
+
+/**
+ * The server side of one client connection of the {@link NioChatServer}.
+ * <p>
+ * A connection is the {@link CommandsFromServer} registered in every room the
+ * client joined through it: the callbacks made by the delivery engine only
+ * queue a frame, which the selector thread writes when the socket is ready.
+ * If the client does not read fast enough and more than
+ * <code>os.chat.nio.maxOutboundBytes</code> bytes are waiting, the callbacks
+ * fail so that the rooms evict the client like any other slow consumer.
+ * <p>
+ * When the client uses a room hosted by another node, the connection is
+ * exported as an RMI object, so that the node hosting the room calls it
+ * back like any RMI client.
+ */
+class ServerConnection implements CommandsFromServer {
+
+	private static final long MAX_OUTBOUND_BYTES = Long.getLong("os.chat.nio.maxOutboundBytes", 8 * 1024 * 1024);
+
+	final SocketChannel channel;
+	final SelectionKey key;
+	private final NioChatServer server;
+
+	/** Bytes read from the socket and not parsed yet. */
+	ByteBuffer inbound = ByteBuffer.allocate(64 * 1024);
+
+	private final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicLong outboundBytes = new AtomicLong();
+	final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+	/** The rooms joined through this connection, left when it closes. */
+	final Set<String> rooms = ConcurrentHashMap.newKeySet();
+
+	private volatile boolean closed = false;
+	private boolean exported = false;
+
+	ServerConnection(NioChatServer server, SocketChannel channel, SelectionKey key) {
+		this.server = server;
+		this.channel = channel;
+		this.key = key;
+	}
+
+	/**
+	 * Queues a frame for this client. May be called from any thread.
+	 * @param frame the frame to send
+	 */
+	void send(ByteBuffer frame) throws RemoteException {
+		if (closed)
+			throw new ConnectException("Connection to " + this + " is closed");
+		if (outboundBytes.get() > MAX_OUTBOUND_BYTES)
+			throw new RemoteException("Client " + this + " does not read its messages");
+		outboundBytes.addAndGet(frame.remaining());
+		outbound.add(frame);
+		server.requestWrite(this);
+	}
+
+	/**
+	 * Writes as much of the queued frames as the socket accepts. Called by
+	 * the selector thread only.
+	 * @return <code>true</code> if everything was written
+	 */
+	boolean flush() throws IOException {
+		ByteBuffer frame;
+		while ((frame = outbound.peek()) != null) {
+			channel.write(frame);
+			if (frame.hasRemaining())
+				return false;
+			outbound.poll();
+			outboundBytes.addAndGet(-frame.limit());
+		}
+		return true;
+	}
+
+	void close() {
+		closed = true;
+		outbound.clear();
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Exports the connection, if it is not already, before it is passed to
+	 * another node.
+	 */
+	synchronized void export() throws RemoteException {
+		if (closed)
+			throw new ConnectException("Connection to " + this + " is closed");
+		if (!exported) {
+			UnicastRemoteObject.exportObject(this, 0);
+			exported = true;
+		}
+	}
+
+	/**
+	 * Stops the calls from the other nodes, once the connection is closed
+	 * and has left their rooms.
+	 */
+	synchronized void unexport() {
+		if (exported) {
+			try {
+				UnicastRemoteObject.unexportObject(this, true);
+			} catch (NoSuchObjectException e) {
+				// already unexported
+			}
+			exported = false;
+		}
+	}
+
+	public void receiveMsg(String roomName, String message) throws RemoteException {
+		send(new Frames.Builder(Frames.MESSAGE, 0).putString(roomName).putString(message).build());
+	}
+
+	public void receiveBatch(List<Message> messages) throws RemoteException {
+		send(new Frames.Builder(Frames.BATCH, 0).putMessages(messages).build());
+	}
+
+	/**
+	 * @return the host of the client, to apply its rate limits
+	 */
+	String getHost() {
+		try {
+			return ((InetSocketAddress) channel.getRemoteAddress()).getHostString();
+		} catch (IOException e) {
+			return "closed";
+		}
+	}
+
+	@Override
+	public String toString() {
+		try {
+			return "nio:" + channel.getRemoteAddress();
+		} catch (IOException e) {
+			return "nio:closed";
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package os.chat.server;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Vector;
+
+import os.chat.client.CommandsFromServer;
+import os.chat.server.store.RoomSnapshot;
+
+/**
+ * This interface is the set of commands the server nodes call on each other
+ * when the rooms are sharded across several {@link ChatServerManager}s.
+ * <p>
+ * Unlike those of {@link ChatServerManagerInterface}, these calls are never
+ * forwarded: they only concern the rooms hosted by the node called.
+ */
+public interface ChatNodeInterface extends Remote {
+
+	/**
+	 * Getter method for the identifier of the node.
+	 * @return the <code>host:port</code> of the registry of the node
+	 */
+	public String getNodeId() throws RemoteException;
+
+	/**
+	 * Hosts a chat room on the node, new or moved from another node.
+	 * @param roomName the name of the chat room
+	 * @param snapshot the state of a room moved from another node, or
+	 * <code>null</code> for a new room
+	 * @return <code>true</code> if the room was created, <code>false</code>
+	 * if the node already hosts it
+	 */
+	public boolean hostRoom(String roomName, RoomSnapshot snapshot) throws RemoteException;
+
+	/**
+	 * Lists the rooms hosted by the node whose name starts with
+	 * <code>prefix</code>, in alphabetical order.
+	 * @param prefix the beginning of the room names, empty for all rooms
+	 * @param limit the maximum number of rooms to return
+	 * @return at most <code>limit</code> room names
+	 */
+	public Vector<String> getLocalRooms(String prefix, int limit) throws RemoteException;
+
+	/**
+	 * Getter method for the state of a chat room hosted by the node.
+	 * @param roomName the name of the chat room
+	 * @return the state of the room, or <code>null</code> if the node does
+	 * not host it
+	 */
+	public RoomInfo getLocalRoomInfo(String roomName) throws RemoteException;
+
+	/**
+	 * Searches the messages of a chat room hosted by the node.
+	 * @param roomName the name of the chat room
+	 * @param query the words to look for
+	 * @param limit the maximum number of messages returned
+	 * @return the matching messages, newest first, or <code>null</code> if
+	 * the node does not host the room
+	 */
+	public Vector<Message> searchLocal(String roomName, String query, int limit) throws RemoteException;
+
+	/**
+	 * Renews the leases of a client in rooms hosted by the node.
+	 * @param client the client
+	 * @param roomNames the rooms
+	 * @return the rooms in which the client is not registered
+	 */
+	public Vector<String> renewLocalLeases(CommandsFromServer client, Vector<String> roomNames) throws RemoteException;
+
+	/**
+	 * Makes the node the standby of a chat room hosted by another node,
+	 * replacing its replica of the room if it has one.
+	 * @param snapshot the state of the room
+	 */
+	public void seedReplica(RoomSnapshot snapshot) throws RemoteException;
+
+	/**
+	 * Adds messages published in a chat room to the replica kept by the
+	 * node.
+	 * @param roomName the name of the chat room
+	 * @param messages consecutive messages, oldest first
+	 * @param lastSequence the sequence number of the last message published
+	 * in the room when the batch was sent, possibly not replicated yet
+	 * @throws RemoteException if the node has no replica of the room, which
+	 * must then be seeded again
+	 */
+	public void replicate(String roomName, List<Message> messages, long lastSequence) throws RemoteException;
+}
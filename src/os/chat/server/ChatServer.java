@@ -1,13 +1,26 @@
 package os.chat.server;
 
+import java.io.IOException;
 import java.rmi.Remote;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.RemoteServer;
+import java.rmi.server.ServerNotActiveException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ScheduledFuture;
 
 import os.chat.client.CommandsFromServer;
+import os.chat.log.Log;
+import os.chat.server.store.MessageStore;
+import os.chat.server.store.RoomLog;
+import os.chat.server.metrics.RoomMetrics;
+import os.chat.server.search.SearchIndex;
+import os.chat.server.store.RoomSnapshot;
 
 /**
  * Each instance of this class is a server for one room.
@@ -22,9 +35,21 @@ import os.chat.client.CommandsFromServer;
 public class ChatServer implements ChatServerInterface {
 	
 	private String roomName;
-	private Vector<CommandsFromServer> registeredClients;
+	private SubscriberRegistry registeredClients;
+	private final Object publishLock = new Object();
+	private long nextSequence = 1; // guarded by publishLock
+	private final RoomHistory history = new RoomHistory(); // guarded by publishLock
+	private RoomLog log; // null if persistence is disabled
+	private final SearchIndex searchIndex;
+	private final RoomMetrics metrics;
+	private DeliveryEngine deliveryEngine;
+	private final LeaseWheel leases = LeaseWheel.getInstance(); // null if leases are disabled
 	private Registry registry;
-	String IP = "172.20.10.3";
+	private final ScheduledFuture<?> resendTask;
+	private volatile Replicator replicator; // null if the room has no standby
+	private static final RateLimiter publisherLimit = RateLimiter.fromProperties("publisher", 1000, 5000);
+	private static final RateLimiter roomLimit = RateLimiter.fromProperties("room", 10000, 20000);
+	String IP = System.getProperty("os.chat.host", "172.20.10.3");
 	
   /**
    * Constructs and initializes the chat room before registering it to the RMI
@@ -32,12 +57,38 @@ public class ChatServer implements ChatServerInterface {
    * @param roomName the name of the chat room
    */
 	public ChatServer(String roomName){
+		this(roomName, null);
+	}
+
+  /**
+   * Constructs the chat room, restoring its history from the message store
+   * if persistence is enabled, before registering it to the RMI registry.
+   * @param roomName the name of the chat room
+   * @param snapshot the last snapshot of the room, or <code>null</code> if
+   * there is none. Also used to move a room from another node.
+   */
+	public ChatServer(String roomName, RoomSnapshot snapshot){
 		this.roomName = roomName;
-		registeredClients = new Vector<CommandsFromServer>();
+		searchIndex = new SearchIndex(roomName);
+		registeredClients = new SubscriberRegistry();
+		metrics = new RoomMetrics(roomName, registeredClients::size, this::getQueueDepth);
+		deliveryEngine = DeliveryEngine.getInstance();
+		resendTask = deliveryEngine.schedulePeriodic(this::resendUnacknowledged, Subscriber.ACK_TIMEOUT_MS / 2);
+		MessageStore store = MessageStore.getInstance();
+		if (store != null) {
+			try {
+				log = store.open(roomName);
+			} catch (IOException e) {
+				System.out.println("Can not open the log of room " + roomName + ", messages will not be persisted");
+				e.printStackTrace();
+			}
+		}
+		if (log != null || snapshot != null)
+			recover(snapshot);
 		try {
 			System.setProperty("java.security.policy", "server.policy");
 			ChatServerInterface stub = (ChatServerInterface) UnicastRemoteObject.exportObject(this,0);
-			registry = LocateRegistry.getRegistry(IP);
+			registry = LocateRegistry.getRegistry(IP, Cluster.REGISTRY_PORT);
 			registry.rebind("room " + roomName, stub);
 			System.out.println("Room " + roomName + " rebounded");
 		} catch (RemoteException e) {
@@ -47,19 +98,247 @@ public class ChatServer implements ChatServerInterface {
 		System.out.println(roomName + " was created");
 	}
 
+	/**
+	 * Restores the history of the room: the messages saved in the snapshot,
+	 * followed by those logged after it, if persistence is enabled. Without a
+	 * snapshot, only the end of the log that fits in the history is read.
+	 * Either way the time taken depends on the size of the history and of the
+	 * log tail, not on the whole log.
+	 */
+	private void recover(RoomSnapshot snapshot) {
+		long fromSequence;
+		long lastSequence = 0;
+		if (snapshot != null) {
+			for (Message message : snapshot.getHistory()) {
+				history.append(message);
+			}
+			fromSequence = snapshot.getLastSequence() + 1;
+			lastSequence = snapshot.getLastSequence();
+		} else {
+			fromSequence = Math.max(1, log.getLastSequence() - history.capacity() + 1);
+		}
+		if (log != null) {
+			log.read(fromSequence, history::append);
+			lastSequence = Math.max(lastSequence, log.getLastSequence());
+		}
+		for (Message message : history.since(0)) {
+			searchIndex.add(message);
+		}
+		// continue the numbering of the messages already published
+		nextSequence = Math.max(history.getLastSequence(), lastSequence) + 1;
+		if (nextSequence > 1)
+			System.out.println("Room " + roomName + " recovered up to message " + (nextSequence - 1));
+	}
+
+	/**
+	 * Takes a snapshot of the room for the message store. The publish lock is
+	 * only held while copying the references of the history.
+	 * @return the sequence number of the last message and the history
+	 */
+	public RoomSnapshot snapshot() {
+		synchronized (publishLock) {
+			return new RoomSnapshot(roomName, nextSequence - 1, history.since(0));
+		}
+	}
+
+	/**
+	 * Closes the room so that it can move to another node: it is removed
+	 * from the registry and its clients are dropped. They notice it on their
+	 * next call or lease renewal, and join the room again where it moved.
+	 * @return the last state of the room, to restore it on the other node
+	 */
+	public RoomSnapshot close() {
+		RoomSnapshot last = snapshot();
+		resendTask.cancel(false);
+		metrics.unregister();
+		try {
+			registry.unbind("room " + roomName);
+		} catch (RemoteException | NotBoundException e) {
+			System.out.println("Can not unbind room " + roomName + ": " + e.getMessage());
+		}
+		try {
+			UnicastRemoteObject.unexportObject(this, true);
+		} catch (NoSuchObjectException e) {
+			// was not exported
+		}
+		for (Subscriber subscriber : registeredClients) {
+			evict(subscriber);
+		}
+		replicator = null;
+		System.out.println("Room " + roomName + " closed at message " + last.getLastSequence());
+		return last;
+	}
+
+	/**
+	 * Streams the messages published from now on to the standby of the room.
+	 * @param replicator the replicator of the room
+	 */
+	void replicateTo(Replicator replicator) {
+		this.replicator = replicator;
+	}
+
+	/**
+	 * Tells whether publishing waits for the standby of the room to have the
+	 * messages (see <code>os.chat.replication.sync</code>), so that the
+	 * callers on a shared thread hand it over to another one.
+	 * @return <code>true</code> if <code>publish</code> may block
+	 */
+	public boolean isReplicationSync() {
+		return Replicator.SYNC && replicator != null;
+	}
+
 	/**
 	 * Publishes to all subscribed clients (i.e. all clients registered to a
 	 * chat room) a message send from a client.
+	 * <p>
+	 * Returns as soon as the message is queued for every client, the
+	 * callbacks are made concurrently by the {@link DeliveryEngine}. In
+	 * synchronous replication mode, it also waits until the standby of the
+	 * room has the message.
 	 * @param message the message to propagate
 	 * @param publisher the client from which the message originates
+	 * @throws RateLimitException if the host of the client or the room
+	 * exceeds its rate limit; the message is then dropped
 	 */
 	public void publish(String message, String publisher) throws RemoteException {
-		System.out.println("[" + roomName + "] " + publisher + ": " + message);
+		publish(message, publisher, clientHost());
+	}
 
-		for (CommandsFromServer client : registeredClients) {
+	/**
+	 * Publishes a message from a client of another transport.
+	 * @param message the message to propagate
+	 * @param publisher the client from which the message originates
+	 * @param host the host of the client, whose publications are limited
+	 * @throws RateLimitException if the host of the client or the room
+	 * exceeds its rate limit; the message is then dropped
+	 */
+	public void publish(String message, String publisher, String host) throws RemoteException {
+		admit(host, publisher, 1);
+		if (Log.sampled(Log.Level.INFO))
+			Log.info("publish", "room", roomName, "publisher", publisher, "message", message);
 
-			client.receiveMsg(roomName, "[" + publisher + "]: " + message);
+		metrics.published(1);
+		// the subscribers only queue the message, the callbacks are made by
+		// the delivery engine. The lock only orders concurrent publishers so
+		// that every client's queue gets the messages in sequence order, it
+		// does not block clients joining or leaving the room.
+		Message line;
+		synchronized (publishLock) {
+			line = append(message, publisher, System.currentTimeMillis());
 		}
+		awaitReplication(line);
+	}
+
+	/**
+	 * Publishes several messages from a client, in order, taking the publish
+	 * lock once for the whole batch.
+	 * @param messages the messages to propagate
+	 * @param publisher the client from which the messages originate
+	 * @throws RateLimitException if the host of the client or the room
+	 * exceeds its rate limit; the whole batch is then dropped
+	 */
+	public void publishBatch(List<String> messages, String publisher) throws RemoteException {
+		publishBatch(messages, publisher, clientHost());
+	}
+
+	/**
+	 * Publishes several messages from a client of another transport.
+	 * @param messages the messages to propagate
+	 * @param publisher the client from which the messages originate
+	 * @param host the host of the client, whose publications are limited
+	 * @throws RateLimitException if the host of the client or the room
+	 * exceeds its rate limit; the whole batch is then dropped
+	 */
+	public void publishBatch(List<String> messages, String publisher, String host) throws RemoteException {
+		admit(host, publisher, messages.size());
+		if (Log.sampled(Log.Level.INFO))
+			Log.info("publish", "room", roomName, "publisher", publisher, "messages", messages.size());
+
+		metrics.published(messages.size());
+		long now = System.currentTimeMillis();
+		Message line = null;
+		synchronized (publishLock) {
+			for (String message : messages) {
+				line = append(message, publisher, now);
+			}
+		}
+		if (line != null)
+			awaitReplication(line);
+	}
+
+	/**
+	 * Takes tokens for new messages from the buckets of the host publishing
+	 * them and of the room, before any work is done for them (see
+	 * <code>os.chat.limit.publisher</code> and <code>os.chat.limit.room</code>
+	 * in {@link RateLimiter}). The host is the one the room creations are
+	 * limited by, not the publisher name given by the client, which it could
+	 * change on every call.
+	 * @param host the host of the client publishing
+	 * @param publisher the client publishing, for the log
+	 * @param count the number of messages
+	 */
+	private void admit(String host, String publisher, int count) throws RateLimitException {
+		RateLimitException exceeded = null;
+		try {
+			if (publisherLimit != null && !publisherLimit.tryAcquire(host, count))
+				exceeded = new RateLimitException("Host " + host + " publishes too fast");
+			else if (roomLimit != null && !roomLimit.tryAcquire(roomName, count))
+				exceeded = new RateLimitException("Room " + roomName + " exceeds its rate limit");
+		} catch (RateLimitException e) {
+			// a batch larger than a burst
+			exceeded = e;
+		}
+		if (exceeded == null)
+			return;
+		metrics.rejected(count);
+		if (Log.sampled(Log.Level.WARN))
+			Log.warn("publish.rejected", "room", roomName, "host", host, "publisher", publisher, "messages", count);
+		throw exceeded;
+	}
+
+	/**
+	 * @return the host of the client making the current RMI call
+	 */
+	private static String clientHost() {
+		try {
+			return RemoteServer.getClientHost();
+		} catch (ServerNotActiveException e) {
+			return "local"; // not an RMI call
+		}
+	}
+
+	/**
+	 * Waits until the standby has a message, if the replication is
+	 * synchronous.
+	 */
+	private void awaitReplication(Message line) throws RemoteException {
+		Replicator replicator = this.replicator;
+		if (Replicator.SYNC && replicator != null)
+			replicator.await(line.getSequence());
+	}
+
+	/**
+	 * Numbers, stores and queues one message for every subscriber. Must be
+	 * called with the publish lock held.
+	 * @return the message
+	 */
+	private Message append(String message, String publisher, long timestamp) {
+		// encoded once here, the same frame is sent to every client
+		Message line = new Message(roomName, nextSequence++, publisher, message, timestamp);
+		history.append(line);
+		if (log != null)
+			log.append(line);
+		searchIndex.add(line);
+		Replicator replicator = this.replicator;
+		if (replicator != null)
+			replicator.add(line);
+		long start = System.nanoTime();
+		for (Subscriber subscriber : registeredClients) {
+			if (!subscriber.send(line))
+				evict(subscriber);
+		}
+		metrics.fanOut(System.nanoTime() - start);
+		return line;
 	}
 
 	/**
@@ -69,17 +348,43 @@ public class ChatServer implements ChatServerInterface {
 	 */
 	public void register(CommandsFromServer client) throws RemoteException {
 		try {
-			if (!registeredClients.contains(client)) {
-				registeredClients.add(client);
-				System.out.println("Client registered : " + client);
-				System.out.println("Number of registered clients : " + registeredClients.size());
+			Subscriber subscriber = new Subscriber(this, client, deliveryEngine);
+			if (registeredClients.add(subscriber)) {
+				if (leases != null)
+					leases.add(subscriber);
+				Log.info("register", "room", roomName, "client", client, "members", registeredClients.size());
 			}
 		} catch (Exception e) {
-			System.out.println("Error registering client: " + e.getMessage());
-			e.printStackTrace();
+			Log.error("register.failed", e, "room", roomName, "client", client);
 		}
 	}
 
+	/**
+	 * Registers a new client to the chat room and sends it, as a single
+	 * batch and before any new message, the messages of the room history
+	 * whose sequence number is at least <code>fromSequence</code>.
+	 * @param client the name of the client as registered with the RMI
+	 * registry
+	 * @param fromSequence the first sequence number to replay, 0 for the
+	 * whole history
+	 */
+	public void register(CommandsFromServer client, long fromSequence) throws RemoteException {
+		Subscriber subscriber = new Subscriber(this, client, deliveryEngine);
+		// under the publish lock, so that no message is published between
+		// the replay and the first live message
+		synchronized (publishLock) {
+			if (!registeredClients.add(subscriber)) {
+				Log.debug("register.duplicate", "room", roomName, "client", client);
+				return;
+			}
+			subscriber.replay(history.since(fromSequence));
+		}
+		if (leases != null)
+			leases.add(subscriber);
+		Log.info("register", "room", roomName, "client", client, "from", fromSequence, "members",
+				registeredClients.size());
+	}
+
 	/**
 	 * Unregisters a client from the chat room.
 	 * @param client the name of the client as registered with the RMI
@@ -87,14 +392,153 @@ public class ChatServer implements ChatServerInterface {
 	 */
 	public void unregister(CommandsFromServer client) throws RemoteException {
 		try {
-			if (registeredClients.contains(client)) {
-				registeredClients.remove(client);
-				System.out.println("Client unregistered: " + client);
+			Subscriber subscriber = registeredClients.remove(client);
+			if (subscriber != null) {
+				subscriber.close();
+				Log.info("unregister", "room", roomName, "client", client);
 			}
 		} catch (Exception e) {
-			System.out.println("Error unregistering client: " + e.getMessage());
-			e.printStackTrace();
+			Log.error("unregister.failed", e, "room", roomName, "client", client);
+		}
+	}
+
+	/**
+	 * Records that a client received all the messages of the room up to
+	 * <code>sequence</code>.
+	 * @param client the client acknowledging
+	 * @param sequence the sequence number of the last message received in
+	 * order
+	 */
+	public void acknowledge(CommandsFromServer client, long sequence) throws RemoteException {
+		Subscriber subscriber = registeredClients.get(client);
+		if (subscriber != null)
+			subscriber.acknowledge(sequence);
+	}
+
+	/**
+	 * Compresses the large messages sent to a registered client, unless
+	 * <code>os.chat.compression</code> is <code>false</code>.
+	 * @param client the client
+	 * @return <code>true</code> if the messages will be compressed
+	 */
+	public boolean enableCompression(CommandsFromServer client) throws RemoteException {
+		Subscriber subscriber = registeredClients.get(client);
+		if (!CompressedMessage.ENABLED || subscriber == null)
+			return false;
+		subscriber.enableCompression();
+		return true;
+	}
+
+	/**
+	 * Renews the lease of a registered client.
+	 * @param client the client
+	 * @param expiry the new expiry time of the lease, in milliseconds
+	 * @return <code>false</code> if the client is not registered (any more)
+	 */
+	boolean renewLease(CommandsFromServer client, long expiry) {
+		Subscriber subscriber = registeredClients.get(client);
+		if (subscriber == null)
+			return false;
+		subscriber.renewLease(expiry);
+		return true;
+	}
+
+	/**
+	 * Fetches messages from the room history, to fill a gap detected by a
+	 * client.
+	 * @param fromSequence the first sequence number wanted
+	 * @param toSequence the last sequence number wanted
+	 * @return the messages still in the history, oldest first
+	 */
+	public Vector<Message> fetch(long fromSequence, long toSequence) throws RemoteException {
+		synchronized (publishLock) {
+			return new MessageList(history.range(fromSequence, toSequence));
+		}
+	}
+
+	/**
+	 * Resends the messages that were not acknowledged in time. Run
+	 * periodically by the delivery engine.
+	 */
+	private void resendUnacknowledged() {
+		Replicator replicator = this.replicator;
+		if (replicator != null)
+			replicator.retry();
+		long now = System.currentTimeMillis();
+		for (Subscriber subscriber : registeredClients) {
+			long fromSequence = subscriber.resendFrom(now);
+			if (fromSequence > 0) {
+				List<Message> missing;
+				synchronized (publishLock) {
+					missing = history.since(fromSequence);
+				}
+				Log.info("resend", "room", roomName, "client", subscriber.getClient(), "from", fromSequence,
+						"messages", missing.size());
+				subscriber.replay(missing);
+			}
+		}
+	}
+
+	/**
+	 * Unregisters a client that does not keep up with the room or whose
+	 * callbacks keep failing. Its pending messages are dropped.
+	 * @param subscriber the subscriber to remove
+	 */
+	void evict(Subscriber subscriber) {
+		subscriber.close();
+		if (registeredClients.remove(subscriber)) {
+			metrics.evicted();
+			Log.warn("evict", "room", roomName, "client", subscriber.getClient());
+		}
+	}
+
+	/**
+	 * @return the number of messages waiting to be sent to the clients
+	 */
+	private long getQueueDepth() {
+		long depth = 0;
+		for (Subscriber subscriber : registeredClients) {
+			depth += subscriber.getQueueSize();
 		}
+		return depth;
+	}
+
+	/**
+	 * Getter method for the metrics of the chat room.
+	 * @return the metrics
+	 */
+	public RoomMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Finds the newest messages of the room containing all the words of a
+	 * query. Messages become searchable shortly after being published.
+	 * @param query the words to look for
+	 * @param limit the maximum number of messages returned
+	 * @return the matching messages, newest first
+	 */
+	public List<Message> search(String query, int limit) {
+		return searchIndex.search(query, limit);
+	}
+
+	/**
+	 * Getter method for the name of the chat room.
+	 * @return the name of the chat room
+	 */
+	public String getRoomName() {
+		return roomName;
+	}
+
+	/**
+	 * Takes a snapshot of the room: number of members and message rate. The
+	 * rate is the average over the time elapsed since the previous sample,
+	 * re-sampled at most once per second.
+	 * @return the current state of the room
+	 */
+	public RoomInfo getRoomInfo() {
+		return new RoomInfo(roomName, registeredClients.size(), metrics.getPublishedMessages(),
+				metrics.getMessageRate());
 	}
 	
 }
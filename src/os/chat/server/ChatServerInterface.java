@@ -4,6 +4,8 @@ import os.chat.client.CommandsFromServer;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Vector;
 
 /**
  * This interface is the set of commands that can be called remotely for the
@@ -17,16 +19,66 @@ public interface ChatServerInterface extends Remote {
 	 * @param message The message to propagate
 	 */
 	public void publish(String message, String publisher) throws RemoteException;
+
+	/**
+	 * receives several messages from a client and sends them, in order, to
+	 * all subscribed clients, as if published one by one but in a single call
+	 * @param messages the messages to propagate
+	 * @param publisher the client from which the messages originate
+	 */
+	public void publishBatch(List<String> messages, String publisher) throws RemoteException;
 	
 	/**
 	 * registers a new client to the chat room
 	 * @param clientLookupName the name of the client as registered on the RMI registry
 	 */
 	public void register(CommandsFromServer client) throws RemoteException;
+
+	/**
+	 * registers a new client to the chat room and replays to it, in one
+	 * batch, the recent messages whose sequence number is at least
+	 * <code>fromSequence</code>
+	 * @param client the client to register
+	 * @param fromSequence the first sequence number to replay, 0 for all the
+	 * messages kept by the room
+	 */
+	public void register(CommandsFromServer client, long fromSequence) throws RemoteException;
 	
 	/**
 	 * unregisters a new client to the chat room
 	 * @param clientLookupName the name of the client as registered on the RMI registry
 	 */
 	public void unregister(CommandsFromServer client) throws RemoteException;
+
+	/**
+	 * acknowledges all the messages of the room up to <code>sequence</code>
+	 * (inclusive). Clients should ack periodically rather than per message;
+	 * a client that acks but falls behind gets the unacknowledged messages
+	 * again, so it must ignore the ones it already has
+	 * @param client the client acknowledging
+	 * @param sequence the sequence number of the last message received in
+	 * order
+	 */
+	public void acknowledge(CommandsFromServer client, long sequence) throws RemoteException;
+
+	/**
+	 * fetches the messages still in the history of the room whose sequence
+	 * number is between <code>fromSequence</code> and <code>toSequence</code>
+	 * (inclusive), to fill a gap in the messages received
+	 * @param fromSequence the first sequence number wanted
+	 * @param toSequence the last sequence number wanted
+	 * @return the messages found, oldest first; older ones may be missing
+	 */
+	public Vector<Message> fetch(long fromSequence, long toSequence) throws RemoteException;
+
+	/**
+	 * Asks the chat room to compress the large messages it sends to a
+	 * registered client (see {@link CompressedMessage}). Each message is
+	 * compressed once for all the clients that asked.
+	 * @param client the client, already registered
+	 * @return <code>true</code> if the messages will be compressed,
+	 * <code>false</code> if the server does not compress or the client is
+	 * not registered
+	 */
+	public boolean enableCompression(CommandsFromServer client) throws RemoteException;
 }
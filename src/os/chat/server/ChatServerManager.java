@@ -1,13 +1,39 @@
 package os.chat.server;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.rmi.NotBoundException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
+import java.rmi.server.RemoteServer;
+import java.rmi.server.ServerNotActiveException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.rmi.registry.Registry;
 
+import os.chat.client.CommandsFromServer;
+import os.chat.codec.StringList;
+import os.chat.log.Log;
+import os.chat.nio.NioChatServer;
+import os.chat.server.metrics.MetricsSnapshot;
+import os.chat.server.metrics.NodeMetrics;
+import os.chat.server.metrics.RoomMetrics;
+import os.chat.server.store.MessageStore;
+import os.chat.server.store.RoomSnapshot;
+
 /**
  * This class manages the available {@link ChatServer}s and available rooms.
  * <p>
@@ -16,20 +42,78 @@ import java.rmi.registry.Registry;
  * <p>
  * Later you will modify this to allow creating new rooms and
  * looking them up from the {@link ChatClient}.
+ * <p>
+ * The rooms can be sharded across several managers, each in its own JVM with
+ * its own registry (<code>os.chat.registry.port</code>), listed in
+ * <code>os.chat.nodes</code>. Every manager places the rooms the same way, on
+ * a {@link HashRing} of the live nodes, so clients can ask any of them: the
+ * calls about a room hosted elsewhere are forwarded to its node, and
+ * {@link #locateRoom(String)} tells clients where to look the room up.
+ * When a node joins or leaves, the rooms that change owner move with their
+ * recent history.
+ * <p>
+ * Each room is also replicated to its standby node, the one that takes it
+ * over if its node fails (see {@link Replicator}). The standby registers the
+ * room under its name as soon as it notices the failure, and the clients
+ * join it again from the last message they received.
  */
-public class ChatServerManager implements ChatServerManagerInterface {
+public class ChatServerManager implements ChatServerManagerInterface, ChatNodeInterface {
 
-    /**
-     * NOTE: technically this vector is redundant, since the room name can also
-     * be retrieved from the chat server vector.
-     */
-	private Vector<String> chatRoomsList;
+	/**
+	 * The room directory, for O(1) lookup and atomic create-if-absent.
+	 */
+	private ConcurrentHashMap<String, ChatServer> chatRooms;
 
-	private Vector<ChatServer> chatRooms;
+	/**
+	 * The room names in sorted order, so that rooms can be listed by prefix
+	 * and page without scanning the whole directory.
+	 */
+	private ConcurrentSkipListSet<String> chatRoomNames;
+
+	/**
+	 * The last list returned by {@link #getRoomsList()}, rebuilt only after a
+	 * room is created.
+	 */
+	private volatile Vector<String> chatRoomsList;
+
+	/**
+	 * Guards the changes to the room directory and the rebuilding of
+	 * {@link #chatRoomsList}, so that a list built before a change is never
+	 * cached after it. Lookups do not take it.
+	 */
+	private final Object roomsLock = new Object();
+
+	/**
+	 * The names of the rooms being built, reserved under
+	 * {@link #roomsLock} until the room is added to the directory or its
+	 * creation fails.
+	 */
+	private final Set<String> reservedRooms = new HashSet<String>();
 
     private static ChatServerManager instance = null;
 	private Registry registry;
-	String IP = "172.20.10.3";
+	String IP = System.getProperty("os.chat.host", "172.20.10.3");
+
+	/**
+	 * The other nodes sharing the rooms, if any.
+	 */
+	private final Cluster cluster;
+
+	/**
+	 * The replicas of the rooms this node is the standby of.
+	 */
+	private final ConcurrentHashMap<String, Replica> replicas = new ConcurrentHashMap<String, Replica>();
+
+	/**
+	 * The totals of the metrics of the rooms hosted here.
+	 */
+	private final NodeMetrics metrics;
+
+	/**
+	 * The room creations allowed per client host, see
+	 * <code>os.chat.limit.create</code> in {@link RateLimiter}.
+	 */
+	private static final RateLimiter createLimit = RateLimiter.fromProperties("create", 5, 20);
 
 
 	/**
@@ -40,12 +124,20 @@ public class ChatServerManager implements ChatServerManagerInterface {
 	 */
 	public ChatServerManager () {
 
-		chatRooms = new Vector<>();
-		chatRoomsList = new Vector<>();
+		chatRooms = new ConcurrentHashMap<>();
+		chatRoomNames = new ConcurrentSkipListSet<>();
+		cluster = new Cluster(System.getProperty("os.chat.node", IP + ":" + Cluster.REGISTRY_PORT), this::rebalance);
+		metrics = new NodeMetrics(cluster.getSelf(), () -> {
+			ArrayList<RoomMetrics> rooms = new ArrayList<RoomMetrics>();
+			for (ChatServer chatRoom : chatRooms.values()) {
+				rooms.add(chatRoom.getMetrics());
+			}
+			return rooms;
+		});
 
 		try {
 			ChatServerManagerInterface stub = (ChatServerManagerInterface) UnicastRemoteObject.exportObject(this,0);
-			registry = LocateRegistry.getRegistry(IP);
+			registry = LocateRegistry.getRegistry(IP, Cluster.REGISTRY_PORT);
 			registry.rebind("ChatServerManager", stub);
 		} catch (RemoteException e) {
 			System.out.println("Can not export the object");
@@ -53,17 +145,120 @@ public class ChatServerManager implements ChatServerManagerInterface {
         }
 		System.out.println("ChatServerManager was created");
 
-		try {
-			ChatServer chatRoom = new ChatServer("sports");
-			chatRooms.add(chatRoom);
-			chatRoomsList.add("sports");
+		cluster.start();
+		recoverRooms();
+		create("sports");
+		rebalance();
+		startSnapshots();
+    }
 
-			registry.rebind("sports", chatRoom);
-		} catch (RemoteException e) {
-			System.out.println("Error registering chat room 'sports'");
+	/**
+	 * Moves the rooms hosted here that belong to another node since the last
+	 * change of the live nodes. Each room is closed, then hosted by its new
+	 * node from its last state; if that fails it is hosted here again.
+	 */
+	private synchronized void rebalance() {
+		for (String roomName : chatRooms.keySet()) {
+			String owner = cluster.owner(roomName);
+			if (owner.equals(cluster.getSelf()))
+				continue;
+			ChatServer chatRoom;
+			synchronized (roomsLock) {
+				chatRoom = chatRooms.remove(roomName);
+				chatRoomNames.remove(roomName);
+				chatRoomsList = null;
+			}
+			RoomSnapshot last = chatRoom.close();
+			try {
+				cluster.node(owner).hostRoom(roomName, last);
+				System.out.println("Room " + roomName + " moved to " + owner);
+			} catch (RemoteException | NotBoundException e) {
+				System.out.println("Can not move room " + roomName + " to " + owner + ", keeping it");
+				cluster.forget(owner);
+				hostRoom(roomName, last);
+			}
+		}
+		for (Map.Entry<String, Replica> replica : replicas.entrySet()) {
+			String roomName = replica.getKey();
+			String owner = cluster.owner(roomName);
+			if (owner.equals(cluster.getSelf())) {
+				// if its node is still live the room moves here, with the
+				// messages the replica may not have yet
+				replicas.remove(roomName);
+				if (!cluster.isLive(cluster.previousOwner(roomName)) && hostRoom(roomName, replica.getValue().snapshot()))
+					System.out.println("Room " + roomName + " taken over from " + cluster.previousOwner(roomName));
+			} else if (!cluster.getSelf().equals(cluster.standby(roomName))) {
+				replicas.remove(roomName);
+			}
+		}
+	}
+
+	/**
+	 * Moves all the rooms to the other nodes, before shutting this node
+	 * down.
+	 */
+	public void leaveCluster() {
+		if (cluster.isSharded())
+			cluster.leave();
+	}
+
+	/**
+	 * Restores the rooms found in the message store, if persistence is
+	 * enabled: those of the last snapshot, from their saved state and the
+	 * tail of their log, and those created after the snapshot, from the tail
+	 * of their log only. If the snapshot can not be read, every room is
+	 * recovered from its whole log.
+	 */
+	private void recoverRooms() {
+		MessageStore store = MessageStore.getInstance();
+		if (store == null)
+			return;
+		long start = System.currentTimeMillis();
+		Map<String, RoomSnapshot> snapshots;
+		try {
+			snapshots = store.readSnapshot();
+		} catch (IOException e) {
+			System.out.println("Can not read the snapshot of the rooms, recovering them from their logs");
 			e.printStackTrace();
+			snapshots = new HashMap<>();
 		}
-    }
+		Set<String> roomNames = new LinkedHashSet<>(snapshots.keySet());
+		roomNames.addAll(store.listRooms());
+		for (String roomName : roomNames) {
+			addRoom(roomName, snapshots.get(roomName));
+		}
+		System.out.println("Recovered " + roomNames.size() + " room(s) in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Snapshots the rooms in the background every
+	 * <code>os.chat.snapshot.intervalMs</code> milliseconds (one minute by
+	 * default), if persistence is enabled.
+	 */
+	private void startSnapshots() {
+		final MessageStore store = MessageStore.getInstance();
+		if (store == null)
+			return;
+		long interval = Long.getLong("os.chat.snapshot.intervalMs", 60000);
+		ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "snapshot");
+			t.setDaemon(true);
+			return t;
+		});
+		snapshots.scheduleWithFixedDelay(() -> {
+			try {
+				ArrayList<RoomSnapshot> rooms = new ArrayList<>();
+				for (ChatServer chatRoom : chatRooms.values()) {
+					rooms.add(chatRoom.snapshot());
+				}
+				store.writeSnapshot(rooms);
+			} catch (IOException e) {
+				System.out.println("Can not write the snapshot of the rooms");
+				e.printStackTrace();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
 
     /**
      * Retrieves the chat server manager instance. This method creates a
@@ -78,26 +273,332 @@ public class ChatServerManager implements ChatServerManagerInterface {
     }
 
         /**
-	 * Getter method for list of chat rooms.
+	 * Getter method for list of chat rooms. The list is cached between two
+	 * room creations and must not be modified.
 	 * @return  a list of chat rooms
 	 * @see Vector
 	 */
 	public Vector<String> getRoomsList() {
-		return chatRoomsList;
+		if (cluster.isSharded())
+			return getRoomsList("", 0, Integer.MAX_VALUE);
+		Vector<String> list = chatRoomsList;
+		if (list == null) {
+			synchronized (roomsLock) {
+				list = chatRoomsList;
+				if (list == null) {
+					list = new StringList(chatRoomNames);
+					chatRoomsList = list;
+				}
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Lists one page of the chat rooms whose name starts with
+	 * <code>prefix</code>, in alphabetical order. When the rooms are sharded,
+	 * the first <code>offset + limit</code> rooms of every node are merged.
+	 * @param prefix the beginning of the room names, empty for all rooms
+	 * @param offset the number of matching rooms to skip
+	 * @param limit the maximum number of rooms to return
+	 * @return at most <code>limit</code> room names
+	 */
+	public Vector<String> getRoomsList(String prefix, int offset, int limit) {
+		if (!cluster.isSharded())
+			return getLocalRooms(prefix, offset, limit);
+		int wanted = (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+		TreeSet<String> merged = new TreeSet<>(getLocalRooms(prefix, 0, wanted));
+		for (String node : cluster.getNodes()) {
+			if (node.equals(cluster.getSelf()))
+				continue;
+			try {
+				merged.addAll(cluster.node(node).getLocalRooms(prefix, wanted));
+			} catch (RemoteException | NotBoundException e) {
+				System.out.println("Can not list the rooms of node " + node + ": " + e.getMessage());
+				cluster.forget(node);
+			}
+		}
+		Vector<String> page = new StringList();
+		int skipped = 0;
+		for (String name : merged) {
+			if (page.size() >= limit)
+				break;
+			if (skipped++ >= offset)
+				page.add(name);
+		}
+		return page;
+	}
+
+	/**
+	 * Lists the rooms hosted by this node whose name starts with
+	 * <code>prefix</code>, in alphabetical order.
+	 * @param prefix the beginning of the room names, empty for all rooms
+	 * @param limit the maximum number of rooms to return
+	 * @return at most <code>limit</code> room names
+	 */
+	public Vector<String> getLocalRooms(String prefix, int limit) {
+		return getLocalRooms(prefix, 0, limit);
+	}
+
+	private Vector<String> getLocalRooms(String prefix, int offset, int limit) {
+		Vector<String> page = new StringList();
+		int skipped = 0;
+		for (String name : chatRoomNames.tailSet(prefix)) {
+			if (!name.startsWith(prefix) || page.size() >= limit)
+				break;
+			if (skipped++ >= offset)
+				page.add(name);
+		}
+		return page;
+	}
+
+	/**
+	 * Getter method for a chat room hosted by this manager.
+	 * @param roomName the name of the chat room
+	 * @return the chat room, or <code>null</code> if there is no such room
+	 */
+	public ChatServer getChatRoom(String roomName) {
+		return chatRooms.get(roomName);
+	}
+
+	/**
+	 * Getter method for a chat room, hosted by this node or, when the rooms
+	 * are sharded, by the node owning it.
+	 * @param roomName the name of the chat room
+	 * @return the chat room, or its stub on the node owning it
+	 * @throws NotBoundException if there is no such room
+	 */
+	public ChatServerInterface lookupRoom(String roomName) throws RemoteException, NotBoundException {
+		ChatServer chatRoom = chatRooms.get(roomName);
+		if (chatRoom != null)
+			return chatRoom;
+		String owner = cluster.owner(roomName);
+		if (owner.equals(cluster.getSelf()))
+			throw new NotBoundException("No such room: " + roomName);
+		return cluster.room(owner, roomName);
+	}
+
+	/**
+	 * Tells on which node a chat room is, or would be created.
+	 * @param roomName the name of the chat room
+	 * @return the <code>host:port</code> of the registry of the node
+	 */
+	public String locateRoom(String roomName) {
+		return chatRooms.containsKey(roomName) ? cluster.getSelf() : cluster.owner(roomName);
+	}
+
+	/**
+	 * Tells whether the calls about a room must be forwarded to another
+	 * node.
+	 */
+	private boolean isRemote(String roomName) {
+		return !chatRooms.containsKey(roomName) && !cluster.owner(roomName).equals(cluster.getSelf());
+	}
+
+	/**
+	 * Getter method for the state of a chat room.
+	 * @param roomName the name of the chat room
+	 * @return the current state of the room, or <code>null</code> if there
+	 * is no such room
+	 */
+	public RoomInfo getRoomInfo(String roomName) throws RemoteException {
+		if (isRemote(roomName)) {
+			String owner = cluster.owner(roomName);
+			try {
+				return cluster.node(owner).getLocalRoomInfo(roomName);
+			} catch (NotBoundException e) {
+				throw new RemoteException("Node " + owner + " is not available", e);
+			}
+		}
+		return getLocalRoomInfo(roomName);
+	}
+
+	/**
+	 * Getter method for the state of a chat room hosted by this node.
+	 * @param roomName the name of the chat room
+	 * @return the current state of the room, or <code>null</code> if it is
+	 * not hosted here
+	 */
+	public RoomInfo getLocalRoomInfo(String roomName) {
+		ChatServer chatRoom = chatRooms.get(roomName);
+		return chatRoom == null ? null : chatRoom.getRoomInfo();
+	}
+
+	/**
+	 * Renews the leases of a client in all the rooms it joined, forwarding
+	 * one call to each node hosting some of them.
+	 * @param client the client
+	 * @param roomNames the rooms the client joined
+	 * @return the rooms in which the client is not registered any more
+	 */
+	public Vector<String> renewLeases(CommandsFromServer client, Vector<String> roomNames) {
+		Map<String, Vector<String>> byNode = new HashMap<>();
+		for (String roomName : roomNames) {
+			String node = isRemote(roomName) ? cluster.owner(roomName) : cluster.getSelf();
+			byNode.computeIfAbsent(node, n -> new StringList()).add(roomName);
+		}
+		Vector<String> lost = new StringList();
+		for (Map.Entry<String, Vector<String>> rooms : byNode.entrySet()) {
+			if (rooms.getKey().equals(cluster.getSelf())) {
+				lost.addAll(renewLocalLeases(client, rooms.getValue()));
+				continue;
+			}
+			try {
+				lost.addAll(cluster.node(rooms.getKey()).renewLocalLeases(client, rooms.getValue()));
+			} catch (RemoteException | NotBoundException e) {
+				cluster.forget(rooms.getKey());
+				lost.addAll(rooms.getValue());
+			}
+		}
+		return lost;
+	}
+
+	/**
+	 * Renews the leases of a client in rooms hosted by this node.
+	 * @param client the client
+	 * @param roomNames the rooms
+	 * @return the rooms in which the client is not registered here
+	 */
+	public Vector<String> renewLocalLeases(CommandsFromServer client, Vector<String> roomNames) {
+		long expiry = System.currentTimeMillis() + LeaseWheel.LEASE_MS;
+		Vector<String> lost = new StringList();
+		for (String roomName : roomNames) {
+			ChatServer chatRoom = chatRooms.get(roomName);
+			if (chatRoom == null || !chatRoom.renewLease(client, expiry))
+				lost.add(roomName);
+		}
+		return lost;
+	}
+
+	/**
+	 * Finds the newest messages of a chat room containing all the words of a
+	 * query.
+	 * @param roomName the name of the chat room
+	 * @param query the words to look for
+	 * @param limit the maximum number of messages returned
+	 * @return the matching messages, newest first, or <code>null</code> if
+	 * there is no such room
+	 */
+	public Vector<Message> search(String roomName, String query, int limit) throws RemoteException {
+		if (isRemote(roomName)) {
+			String owner = cluster.owner(roomName);
+			try {
+				return cluster.node(owner).searchLocal(roomName, query, limit);
+			} catch (NotBoundException e) {
+				throw new RemoteException("Node " + owner + " is not available", e);
+			}
+		}
+		return searchLocal(roomName, query, limit);
+	}
+
+	/**
+	 * Finds the newest messages of a chat room hosted by this node
+	 * containing all the words of a query.
+	 * @param roomName the name of the chat room
+	 * @param query the words to look for
+	 * @param limit the maximum number of messages returned
+	 * @return the matching messages, newest first, or <code>null</code> if
+	 * the room is not hosted here
+	 */
+	public Vector<Message> searchLocal(String roomName, String query, int limit) {
+		ChatServer chatRoom = chatRooms.get(roomName);
+		return chatRoom == null ? null : new MessageList(chatRoom.search(query, limit));
+	}
+
+	/**
+	 * Takes a snapshot of the metrics of this node and of its rooms.
+	 * @return the metrics of the node, with its rooms
+	 */
+	public MetricsSnapshot getMetrics() {
+		return metrics.snapshot();
+	}
+
+	/**
+	 * Takes a snapshot of the metrics of a room hosted by this node.
+	 * @param roomName the name of the chat room
+	 * @return the metrics of the room, or <code>null</code> if it is not
+	 * hosted here
+	 */
+	public MetricsSnapshot getRoomMetrics(String roomName) {
+		ChatServer chatRoom = chatRooms.get(roomName);
+		return chatRoom == null ? null : chatRoom.getMetrics().snapshot();
+	}
+
+	/**
+	 * Getter method for the identifier of this node.
+	 * @return the <code>host:port</code> of the registry of this node
+	 */
+	public String getNodeId() {
+		return cluster.getSelf();
 	}
 
         /**
-	 * Creates a chat room with a specified room name <code>roomName</code>.
+	 * Creates a chat room with a specified room name <code>roomName</code>,
+	 * on the node owning it.
 	 * @param roomName the name of the chat room
 	 * @return <code>true</code> if the chat room was successfully created,
-	 * <code>false</code> otherwise.
+	 * <code>false</code> otherwise (e.g. if it already exists).
+	 * @throws RateLimitException if the client host creates rooms too fast
+	 */
+		public boolean createRoom(String roomName) throws RateLimitException {
+			String host;
+			try {
+				host = RemoteServer.getClientHost();
+			} catch (ServerNotActiveException e) {
+				host = "local"; // not an RMI call
+			}
+			return createRoom(roomName, host);
+		}
+
+	/**
+	 * Creates a chat room on the node owning it, for a client of another
+	 * transport.
+	 * @param roomName the name of the chat room
+	 * @param host the host of the client, whose creations are limited
+	 * @return <code>true</code> if the chat room was successfully created
+	 * @throws RateLimitException if the client host creates rooms too fast
+	 */
+		public boolean createRoom(String roomName, String host) throws RateLimitException {
+			if (createLimit != null && !createLimit.tryAcquire(host, 1)) {
+				Log.warn("create.rejected", "room", roomName, "host", host);
+				throw new RateLimitException("Host " + host + " creates rooms too fast");
+			}
+			return create(roomName);
+		}
+
+	/**
+	 * Creates a chat room on the node owning it.
+	 * @param roomName the name of the chat room
+	 * @return <code>true</code> if the chat room was created
+	 */
+		private boolean create(String roomName) {
+			if (isRemote(roomName)) {
+				String owner = cluster.owner(roomName);
+				try {
+					return cluster.node(owner).hostRoom(roomName, null);
+				} catch (RemoteException | NotBoundException e) {
+					System.out.println("Can not create room '" + roomName + "' on node " + owner);
+					cluster.forget(owner);
+					return false;
+				}
+			}
+			return hostRoom(roomName, null);
+		}
+
+	/**
+	 * Creates a chat room on this node, new or moved from another node.
+	 * @param roomName the name of the chat room
+	 * @param snapshot the state of a moved room, <code>null</code> for a new
+	 * room
+	 * @return <code>true</code> if the chat room was created,
+	 * <code>false</code> if it already exists here
 	 */
-		public boolean createRoom(String roomName) {
+		public boolean hostRoom(String roomName, RoomSnapshot snapshot) {
 			try {
-				chatRooms = new Vector<>();
-				ChatServer chatRoom = new ChatServer(roomName);
-				chatRooms.add(chatRoom);
-				chatRoomsList.add(roomName);
+				if (!addRoom(roomName, snapshot)) {
+					System.out.println("Room " + roomName + " already exists");
+					return false;
+				}
 				System.out.println("Room " + roomName + " created");
 				return true;
 			} catch (Exception e) {
@@ -107,15 +608,92 @@ public class ChatServerManager implements ChatServerManagerInterface {
 			return false;
 		}
 
+	/**
+	 * Builds a chat room and adds it to the directory. The name is reserved
+	 * under {@link #roomsLock}, but the room is built without holding it, as
+	 * exporting the room, binding it in the registry and replaying its log
+	 * take a while; the reservation is released if that fails.
+	 * @param roomName the name of the chat room
+	 * @param snapshot the state of the room, <code>null</code> for a new room
+	 * @return <code>false</code> if the room already exists here or is being
+	 * built
+	 */
+	private boolean addRoom(String roomName, RoomSnapshot snapshot) {
+		synchronized (roomsLock) {
+			if (chatRooms.containsKey(roomName) || !reservedRooms.add(roomName))
+				return false;
+		}
+		ChatServer chatRoom;
+		try {
+			chatRoom = newRoom(roomName, snapshot);
+		} catch (RuntimeException e) {
+			synchronized (roomsLock) {
+				reservedRooms.remove(roomName);
+			}
+			throw e;
+		}
+		synchronized (roomsLock) {
+			chatRooms.put(roomName, chatRoom);
+			chatRoomNames.add(roomName);
+			chatRoomsList = null;
+			reservedRooms.remove(roomName);
+		}
+		return true;
+	}
+
+	/**
+	 * Creates a chat room, replicated to its standby if the rooms are
+	 * sharded.
+	 */
+	private ChatServer newRoom(String roomName, RoomSnapshot snapshot) {
+		ChatServer chatRoom = new ChatServer(roomName, snapshot);
+		if (cluster.isSharded())
+			chatRoom.replicateTo(new Replicator(chatRoom, cluster));
+		return chatRoom;
+	}
+
+	/**
+	 * Makes this node the standby of a chat room hosted by another node.
+	 * @param snapshot the state of the room
+	 */
+	public void seedReplica(RoomSnapshot snapshot) {
+		replicas.put(snapshot.getRoomName(), new Replica(snapshot));
+	}
+
+	/**
+	 * Adds messages published in a chat room to its replica.
+	 * @param roomName the name of the chat room
+	 * @param messages consecutive messages, oldest first
+	 * @param lastSequence the sequence number of the last message published
+	 * in the room when the batch was sent
+	 * @throws RemoteException if this node has no replica of the room
+	 */
+	public void replicate(String roomName, List<Message> messages, long lastSequence) throws RemoteException {
+		Replica replica = replicas.get(roomName);
+		if (replica == null)
+			throw new RemoteException("No replica of room " + roomName);
+		replica.append(messages, lastSequence);
+	}
+
 
 	public static void main(String[] args) {
 		 try {
-			 LocateRegistry.createRegistry(1099);
+			 LocateRegistry.createRegistry(Cluster.REGISTRY_PORT);
 			 } catch (RemoteException e) {
 			 System.out.println("Error: Can not create registry");
 			 e.printStackTrace();
 			 }
 		 System.out.println("Registry was created");
 		 getInstance();
+		 // hand the rooms over to the other nodes when stopped
+		 Runtime.getRuntime().addShutdownHook(new Thread(() -> getInstance().leaveCluster()));
+		 if ("nio".equals(System.getProperty("os.chat.transport", "rmi"))) {
+			 try {
+				 new NioChatServer(getInstance(), Integer.getInteger("os.chat.nio.port", 1100)).start();
+			 } catch (IOException e) {
+				 System.out.println("Error: Can not start the NIO transport");
+				 e.printStackTrace();
+			 }
+		 }
 		 }
 }
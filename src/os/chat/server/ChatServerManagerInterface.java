@@ -4,6 +4,9 @@ import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.Vector;
 
+import os.chat.client.CommandsFromServer;
+import os.chat.server.metrics.MetricsSnapshot;
+
 /**
  * This interface is the set of commands that can be called remotely for the
  * {@link ChatServerManager}:
@@ -28,12 +31,84 @@ public interface ChatServerManagerInterface extends Remote {
 	 * @see Vector
 	 */
 	public Vector<String> getRoomsList() throws RemoteException;
+
+	/**
+	 * Lists one page of the available chat rooms whose name starts with
+	 * <code>prefix</code>, in alphabetical order. Use this rather than
+	 * {@link #getRoomsList()} when there are many rooms.
+	 * @param prefix the beginning of the room names, empty for all rooms
+	 * @param offset the number of matching rooms to skip
+	 * @param limit the maximum number of rooms to return
+	 * @return at most <code>limit</code> room names
+	 */
+	public Vector<String> getRoomsList(String prefix, int offset, int limit) throws RemoteException;
+
+	/**
+	 * Tells which server node hosts a chat room, when the rooms are sharded
+	 * across several nodes. The room must be looked up in the registry of
+	 * that node.
+	 * @param roomName the name of the chat room
+	 * @return the <code>host:port</code> of the registry of the node hosting
+	 * the room, or that would host it if it does not exist
+	 */
+	public String locateRoom(String roomName) throws RemoteException;
+
+	/**
+	 * Getter method for the state of a chat room (number of members,
+	 * message rate).
+	 * @param roomName the name of the chat room
+	 * @return the current state of the room, or <code>null</code> if there
+	 * is no such room
+	 */
+	public RoomInfo getRoomInfo(String roomName) throws RemoteException;
+
+	/**
+	 * Renews, in a single call, the leases of a client in all the rooms it
+	 * joined. A client that does not renew its leases within
+	 * <code>os.chat.lease.ms</code> milliseconds (30 s by default) is
+	 * unregistered from its rooms, so clients should call this about three
+	 * times per lease period.
+	 * @param client the client, as registered in the rooms
+	 * @param roomNames the rooms the client joined
+	 * @return the rooms in which the client is not registered any more
+	 * (e.g. its lease expired), and which it must join again
+	 */
+	public Vector<String> renewLeases(CommandsFromServer client, Vector<String> roomNames) throws RemoteException;
+
+	/**
+	 * Finds the newest messages of a chat room containing all the words of
+	 * <code>query</code>, ignoring case and punctuation. Messages become
+	 * searchable about a second after being published.
+	 * @param roomName the name of the chat room
+	 * @param query the words to look for
+	 * @param limit the maximum number of messages returned
+	 * @return the matching messages, newest first, or <code>null</code> if
+	 * there is no such room
+	 */
+	public Vector<Message> search(String roomName, String query, int limit) throws RemoteException;
+
+	/**
+	 * Takes a snapshot of the metrics of the server node called: its totals
+	 * and the counters of each room it hosts. The same metrics are exposed
+	 * through JMX.
+	 * @return the metrics of the node, with its rooms
+	 */
+	public MetricsSnapshot getMetrics() throws RemoteException;
+
+	/**
+	 * Takes a snapshot of the metrics of a room hosted by the server node
+	 * called, with its latency histograms.
+	 * @param roomName the name of the chat room
+	 * @return the metrics of the room, or <code>null</code> if it is not
+	 * hosted by this node
+	 */
+	public MetricsSnapshot getRoomMetrics(String roomName) throws RemoteException;
 	
         /**
 	 * Creates a new chat room with a specified room name <code>roomName</code>.
 	 * @param roomName the name of the chat room
 	 * @return <code>true</code> if the new chat room was successfully
-	 * created, <code>false</code> otherwise.
+	 * created, <code>false</code> otherwise (e.g. if it already exists).
 	 */
 	public boolean createRoom(String roomName) throws RemoteException;
 	
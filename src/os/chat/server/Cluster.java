@@ -0,0 +1,200 @@
+package os.chat.server;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The server nodes sharing the chat rooms, as seen by one node.
+ * <p>
+ * The nodes are listed in <code>os.chat.nodes</code> as comma-separated
+ * <code>host:port</code> registry addresses; without it, the node is alone
+ * and hosts every room. The listed nodes are probed every
+ * <code>os.chat.nodes.checkMs</code> milliseconds (5 s by default), and the
+ * rooms are placed on those that answer with a {@link HashRing}. Whenever the
+ * set of live nodes changes, the node is told to move away the rooms it
+ * does not own any more.
+ */
+class Cluster {
+
+	/** The port of the RMI registry of this node. */
+	static final int REGISTRY_PORT = Integer.getInteger("os.chat.registry.port", 1099);
+
+	private static final long CHECK_MS = Long.getLong("os.chat.nodes.checkMs", 5000);
+
+	private final String self;
+	private final List<String> configured = new ArrayList<String>();
+	private final ConcurrentHashMap<String, ChatNodeInterface> stubs = new ConcurrentHashMap<String, ChatNodeInterface>();
+	private final Runnable onChange;
+	private volatile HashRing ring;
+	private volatile HashRing previous;
+	private volatile boolean leaving = false;
+
+	/**
+	 * Creates the view of the cluster of a node.
+	 * @param self the identifier of this node, its <code>host:port</code>
+	 * @param onChange run after the set of live nodes changed
+	 */
+	Cluster(String self, Runnable onChange) {
+		this.self = self;
+		this.onChange = onChange;
+		for (String node : System.getProperty("os.chat.nodes", "").split(",")) {
+			node = node.trim();
+			if (!node.isEmpty() && !node.equals(self))
+				configured.add(node);
+		}
+		ring = new HashRing(Collections.singleton(self));
+		previous = ring;
+	}
+
+	/**
+	 * Probes the other nodes once, then periodically in the background.
+	 */
+	void start() {
+		if (configured.isEmpty())
+			return;
+		probe();
+		ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "cluster-check");
+			t.setDaemon(true);
+			return t;
+		});
+		checker.scheduleWithFixedDelay(this::probe, CHECK_MS, CHECK_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Rebuilds the ring from the nodes that answer.
+	 */
+	synchronized void probe() {
+		TreeSet<String> live = new TreeSet<String>();
+		if (!leaving)
+			live.add(self);
+		for (String node : configured) {
+			try {
+				node(node).getNodeId();
+				live.add(node);
+			} catch (RemoteException | NotBoundException e) {
+				stubs.remove(node);
+			}
+		}
+		if (live.isEmpty() || live.equals(ring.getNodes()))
+			return;
+		System.out.println("Live nodes: " + live);
+		previous = ring;
+		ring = new HashRing(live);
+		onChange.run();
+	}
+
+	/**
+	 * Takes this node out of the ring, so that its rooms move to the others.
+	 */
+	void leave() {
+		leaving = true;
+		probe();
+	}
+
+	/**
+	 * @return the identifier of this node
+	 */
+	String getSelf() {
+		return self;
+	}
+
+	/**
+	 * @return <code>true</code> if other nodes are configured
+	 */
+	boolean isSharded() {
+		return !configured.isEmpty();
+	}
+
+	/**
+	 * @return the identifiers of the live nodes, this one included unless it
+	 * is leaving
+	 */
+	List<String> getNodes() {
+		return new ArrayList<String>(ring.getNodes());
+	}
+
+	/**
+	 * @param roomName the name of a room
+	 * @return the identifier of the node owning the room
+	 */
+	String owner(String roomName) {
+		return ring.owner(roomName);
+	}
+
+	/**
+	 * @param roomName the name of a room
+	 * @return the identifier of the node owning the room before the last
+	 * change of the live nodes
+	 */
+	String previousOwner(String roomName) {
+		return previous.owner(roomName);
+	}
+
+	/**
+	 * @param roomName the name of a room
+	 * @return the identifier of the node keeping the replica of the room, or
+	 * <code>null</code> if this node is alone
+	 */
+	String standby(String roomName) {
+		return ring.standby(roomName);
+	}
+
+	/**
+	 * @param node the identifier of a node
+	 * @return <code>true</code> if the node answered the last probe
+	 */
+	boolean isLive(String node) {
+		return ring.getNodes().contains(node);
+	}
+
+	/**
+	 * Getter method for the stub of a node, looked up in its registry the
+	 * first time.
+	 * @param node the identifier of the node
+	 * @return the stub
+	 */
+	ChatNodeInterface node(String node) throws RemoteException, NotBoundException {
+		ChatNodeInterface stub = stubs.get(node);
+		if (stub == null) {
+			int colon = node.lastIndexOf(':');
+			stub = (ChatNodeInterface) LocateRegistry
+					.getRegistry(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)))
+					.lookup("ChatServerManager");
+			stubs.put(node, stub);
+		}
+		return stub;
+	}
+
+	/**
+	 * Looks up the stub of a chat room in the registry of the node hosting
+	 * it.
+	 * @param node the identifier of the node
+	 * @param roomName the name of the chat room
+	 * @return the stub
+	 */
+	ChatServerInterface room(String node, String roomName) throws RemoteException, NotBoundException {
+		int colon = node.lastIndexOf(':');
+		return (ChatServerInterface) LocateRegistry
+				.getRegistry(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)))
+				.lookup("room " + roomName);
+	}
+
+	/**
+	 * Drops the stub of a node after a failed call, so that it is looked up
+	 * again.
+	 * @param node the identifier of the node
+	 */
+	void forget(String node) {
+		stubs.remove(node);
+	}
+}
@@ -0,0 +1,131 @@
+package os.chat.server;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import os.chat.codec.Codec;
+
+/**
+ * A {@link Message} serialized with its frame compressed, for the clients
+ * that enabled compression (see
+ * {@link ChatServerInterface#enableCompression(os.chat.client.CommandsFromServer)}).
+ * <p>
+ * The compressed frame is computed once per message and shared by all the
+ * recipients, like the frame itself: a <code>CompressedMessage</code> only
+ * wraps the message for one callback. Only frames of at least
+ * <code>os.chat.compression.minBytes</code> bytes (1024 by default) are
+ * compressed, with the <code>Deflater</code> level
+ * <code>os.chat.compression.level</code> (1, the fastest, by default); the
+ * others, and those that do not get smaller, are sent as they are.
+ */
+public class CompressedMessage extends Message {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Whether this server compresses for the clients that ask for it. */
+	static final boolean ENABLED = !"false".equals(System.getProperty("os.chat.compression"));
+
+	static final int MIN_BYTES = Integer.getInteger("os.chat.compression.minBytes", 1024);
+	private static final int LEVEL = Integer.getInteger("os.chat.compression.level", Deflater.BEST_SPEED);
+
+	private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(LEVEL));
+	private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+	private transient byte[] compressed;
+
+	/**
+	 * Only used by the serialization, which then calls
+	 * {@link #readExternal(ObjectInput)}.
+	 */
+	public CompressedMessage() {
+	}
+
+	CompressedMessage(Message message, byte[] compressed) {
+		setFrame(message.getFrame());
+		this.compressed = compressed;
+	}
+
+	/**
+	 * Compresses a frame.
+	 * @param frame the frame
+	 * @return the compressed bytes
+	 */
+	static byte[] deflate(byte[] frame) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(frame);
+		deflater.finish();
+		byte[] buffer = new byte[frame.length + 64];
+		int length = 0;
+		while (!deflater.finished()) {
+			if (length == buffer.length)
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			length += deflater.deflate(buffer, length, buffer.length - length);
+		}
+		return Arrays.copyOf(buffer, length);
+	}
+
+	/**
+	 * Decompresses a frame.
+	 * @param compressed the compressed bytes
+	 * @param length the length of the frame, as read from the stream
+	 * @return the frame
+	 * @throws StreamCorruptedException if the length is out of range or
+	 * does not match the compressed bytes
+	 */
+	static byte[] inflate(byte[] compressed, int length) throws IOException {
+		if (length < 0 || length > Codec.MAX_FRAME_SIZE)
+			throw new StreamCorruptedException("Invalid message length " + length);
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(compressed);
+		byte[] frame = new byte[length];
+		try {
+			int read = 0;
+			while (read < length && !inflater.finished()) {
+				int n = inflater.inflate(frame, read, length - read);
+				if (n == 0 && inflater.needsInput())
+					break;
+				read += n;
+			}
+			if (read != length)
+				throw new StreamCorruptedException("Compressed message truncated");
+		} catch (DataFormatException e) {
+			throw new StreamCorruptedException("Invalid compressed message: " + e.getMessage());
+		}
+		return frame;
+	}
+
+	/**
+	 * Getter method for the compressed frame. The array is shared and must
+	 * not be modified.
+	 * @return the compressed bytes
+	 */
+	byte[] getCompressed() {
+		return compressed;
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		Codec.writeVarint(out, getFrame().length);
+		Codec.writeVarint(out, compressed.length);
+		out.write(compressed);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		int length = Codec.readLength(in);
+		int compressedLength = Codec.readLength(in);
+		if (compressedLength > Codec.MAX_FRAME_SIZE)
+			throw new StreamCorruptedException("Invalid message length " + compressedLength);
+		byte[] bytes = new byte[compressedLength];
+		in.readFully(bytes);
+		setFrame(inflate(bytes, length));
+	}
+}
@@ -0,0 +1,110 @@
+package os.chat.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers the published messages of every {@link ChatServer} running in
+ * this JVM to their registered clients.
+ * <p>
+ * The engine owns a bounded pool of sender threads. Each registered client
+ * is wrapped in a {@link Subscriber} that is scheduled on this pool whenever
+ * it has pending messages, so that callbacks to different clients run
+ * concurrently while the messages of one client are always sent one after
+ * the other, in publishing order.
+ * <p>
+ * The number of sender threads (i.e. the maximum number of callbacks in
+ * flight at the same time) can be set with the
+ * <code>os.chat.delivery.threads</code> system property.
+ */
+public class DeliveryEngine {
+
+	private static DeliveryEngine instance = null;
+
+	private final ExecutorService senders;
+	private final ScheduledExecutorService timer;
+
+	/**
+	 * Creates a delivery engine with <code>threads</code> sender threads.
+	 * @param threads the maximum number of concurrent callbacks
+	 */
+	public DeliveryEngine(int threads) {
+		senders = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new SenderThreadFactory("delivery-"));
+		timer = new ScheduledThreadPoolExecutor(1, new SenderThreadFactory("delivery-timer-"));
+		System.out.println("Delivery engine started with " + threads + " sender threads");
+	}
+
+	/**
+	 * Retrieves the delivery engine shared by all the rooms of this JVM,
+	 * creating it on first use.
+	 * @return a reference to the singleton delivery engine
+	 */
+	public static synchronized DeliveryEngine getInstance() {
+		if (instance == null)
+			instance = new DeliveryEngine(Integer.getInteger("os.chat.delivery.threads",
+					4 * Runtime.getRuntime().availableProcessors()));
+
+		return instance;
+	}
+
+	/**
+	 * Hands a subscriber with pending messages to the sender threads.
+	 * @param subscriber the subscriber to drain
+	 */
+	void schedule(Subscriber subscriber) {
+		senders.execute(subscriber);
+	}
+
+	/**
+	 * Hands a subscriber to the sender threads after a delay, so that the
+	 * messages published in the meantime are sent in the same batch.
+	 * @param subscriber the subscriber to drain
+	 * @param delayMs the delay in milliseconds
+	 */
+	void scheduleAfter(final Subscriber subscriber, long delayMs) {
+		timer.schedule(new Runnable() {
+			public void run() {
+				schedule(subscriber);
+			}
+		}, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs a task periodically on the timer thread. The task must be short,
+	 * it delays the batches of every subscriber.
+	 * @param task the task to run
+	 * @param periodMs the period in milliseconds
+	 * @return the handle to cancel the task
+	 */
+	ScheduledFuture<?> schedulePeriodic(Runnable task, long periodMs) {
+		return timer.scheduleWithFixedDelay(task, periodMs, periodMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Names the sender threads and makes them daemons, so that they never
+	 * keep the JVM alive on their own.
+	 */
+	private static class SenderThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		SenderThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package os.chat.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A consistent hash ring placing the chat rooms on the server nodes.
+ * <p>
+ * Each node is hashed to <code>os.chat.ring.vnodes</code> points of the ring
+ * (128 by default), and a room belongs to the node of the first point
+ * following the hash of its name. When a node joins or leaves, only the rooms
+ * between its points and the preceding ones change owner, about one room in
+ * <i>n</i> for <i>n</i> nodes, and the many points per node keep the rooms
+ * evenly spread. The standby of a room, which keeps its replica, is the node
+ * that would own it without its current owner.
+ * <p>
+ * A ring is immutable: a change of membership builds a new one.
+ */
+final class HashRing {
+
+	private static final int VIRTUAL_NODES = Math.max(1, Integer.getInteger("os.chat.ring.vnodes", 128));
+
+	private final TreeMap<Long, String> points = new TreeMap<Long, String>();
+	private final SortedSet<String> nodes;
+
+	/**
+	 * Builds the ring of a set of nodes.
+	 * @param nodes the identifiers of the nodes, at least one
+	 */
+	HashRing(Collection<String> nodes) {
+		this.nodes = Collections.unmodifiableSortedSet(new TreeSet<String>(nodes));
+		for (String node : this.nodes) {
+			for (int i = 0; i < VIRTUAL_NODES; i++) {
+				points.put(hash(node + "#" + i), node);
+			}
+		}
+	}
+
+	/**
+	 * Finds the node a room belongs to.
+	 * @param roomName the name of the room
+	 * @return the identifier of the node
+	 */
+	String owner(String roomName) {
+		Map.Entry<Long, String> point = points.ceilingEntry(hash(roomName));
+		return point != null ? point.getValue() : points.firstEntry().getValue();
+	}
+
+	/**
+	 * Finds the node that takes a room over if its owner leaves the ring:
+	 * the node of the first following point that is not the owner's.
+	 * @param roomName the name of the room
+	 * @return the identifier of the node, or <code>null</code> if the ring
+	 * has a single node
+	 */
+	String standby(String roomName) {
+		String owner = owner(roomName);
+		for (String node : points.tailMap(hash(roomName)).values()) {
+			if (!node.equals(owner))
+				return node;
+		}
+		for (String node : points.values()) {
+			if (!node.equals(owner))
+				return node;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the identifiers of the nodes, sorted
+	 */
+	SortedSet<String> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * 64-bit FNV-1a of the UTF-8 bytes, followed by a final mix so that
+	 * similar names land far apart on the ring.
+	 */
+	private static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			h ^= b;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
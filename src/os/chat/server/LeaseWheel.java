@@ -0,0 +1,92 @@
+package os.chat.server;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Expires the registrations of the clients that stopped renewing their
+ * lease, e.g. because they crashed without leaving their rooms.
+ * <p>
+ * Registrations are leases of <code>os.chat.lease.ms</code> milliseconds
+ * (30 s by default, 0 to disable them), renewed by
+ * {@link ChatServerManagerInterface#renewLeases(os.chat.client.CommandsFromServer, java.util.Vector)}.
+ * Instead of one timer task per subscriber, a hashed timer wheel with one
+ * slot per <code>os.chat.lease.tickMs</code> milliseconds holds the
+ * subscribers by expiry time. Renewing a lease only moves its expiry time
+ * forward: when the slot comes up, a renewed subscriber is put back in the
+ * slot of its new expiry time, and the others are evicted. Each subscriber
+ * is therefore handled about once per lease period, whatever the number of
+ * registrations, and an expired one is gone within one tick of its expiry.
+ */
+class LeaseWheel implements Runnable {
+
+	static final long LEASE_MS = Long.getLong("os.chat.lease.ms", 30000);
+	private static final long TICK_MS = Math.max(1, Long.getLong("os.chat.lease.tickMs", 1000));
+
+	private static LeaseWheel instance = null;
+
+	private final ConcurrentLinkedQueue<Subscriber>[] slots;
+	private final int mask;
+	private long tick; // next tick to process, only used by the timer thread
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private LeaseWheel() {
+		int size = Integer.highestOneBit((int) Math.min(1 << 20, LEASE_MS / TICK_MS + 1)) * 2;
+		slots = new ConcurrentLinkedQueue[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new ConcurrentLinkedQueue<Subscriber>();
+		}
+		mask = size - 1;
+		tick = System.currentTimeMillis() / TICK_MS;
+	}
+
+	/**
+	 * Getter method for the wheel, started on the timer of the
+	 * {@link DeliveryEngine} on first use.
+	 * @return the wheel, or <code>null</code> if leases are disabled
+	 */
+	static synchronized LeaseWheel getInstance() {
+		if (instance == null && LEASE_MS > 0) {
+			instance = new LeaseWheel();
+			DeliveryEngine.getInstance().schedulePeriodic(instance, TICK_MS);
+		}
+		return instance;
+	}
+
+	/**
+	 * Starts tracking the lease of a subscriber.
+	 * @param subscriber the subscriber just registered
+	 */
+	void add(Subscriber subscriber) {
+		long expiry = System.currentTimeMillis() + LEASE_MS;
+		subscriber.renewLease(expiry);
+		slots[(int) (expiry / TICK_MS) & mask].add(subscriber);
+	}
+
+	/**
+	 * Processes the slots of the ticks elapsed since the last run.
+	 */
+	public void run() {
+		long now = System.currentTimeMillis();
+		ArrayList<Subscriber> due = new ArrayList<Subscriber>();
+		for (; tick <= now / TICK_MS; tick++) {
+			ConcurrentLinkedQueue<Subscriber> slot = slots[(int) tick & mask];
+			// drain first: a subscriber put back may land in the same slot
+			for (Subscriber subscriber = slot.poll(); subscriber != null; subscriber = slot.poll()) {
+				due.add(subscriber);
+			}
+			for (Subscriber subscriber : due) {
+				if (subscriber.isClosed())
+					continue;
+				long expiry = subscriber.getLeaseExpiry();
+				if (expiry > now)
+					// never back in a slot already processed, it would wait a
+					// whole turn of the wheel
+					slots[(int) Math.max(expiry / TICK_MS, tick + 1) & mask].add(subscriber);
+				else
+					subscriber.expire();
+			}
+			due.clear();
+		}
+	}
+}
@@ -0,0 +1,340 @@
+package os.chat.server;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import os.chat.codec.Codec;
+
+/**
+ * A message published in a chat room, as delivered to the clients.
+ * <p>
+ * A message is encoded once, when it is published, into an immutable byte
+ * frame holding the room name, the sequence number of the message in the
+ * room, the publisher, the body and the timestamp. Only this frame is
+ * written when the message is serialized, so broadcasting a message to a
+ * thousand clients copies the same bytes a thousand times instead of
+ * encoding its strings a thousand times. The receiving side decodes the
+ * frame lazily, on the first call to a getter.
+ * <p>
+ * The frame is written with the {@link Codec}:
+ * <pre>
+ * byte FORMAT      (1)
+ * string room
+ * varint sequence
+ * string publisher (null for a merged message)
+ * string body
+ * varint timestamp
+ * varint span      (only for a merged message: the number of messages
+ *                   merged before the last one)
+ * </pre>
+ * The frames persisted before this format, which start with the
+ * <code>int</code> length of the room name and so with a 0 byte, are
+ * converted when read back (see {@link #fromFrame(byte[])}).
+ * <p>
+ * A {@link MessageList} writes the room name of its messages once, and
+ * only the rest of their frames.
+ * <p>
+ * Likewise, a large message is compressed at most once, for all the clients
+ * that enabled compression (see {@link CompressedMessage}).
+ */
+public class Message implements Externalizable {
+
+	private static final long serialVersionUID = 3L;
+
+	/** The first byte of a frame. */
+	static final byte FORMAT = 1;
+
+	private byte[] frame;
+
+	// decoded from the frame on first use
+	private transient volatile boolean decoded;
+	private transient String roomName;
+	private transient long sequence;
+	private transient long firstSequence;
+	private transient String publisher;
+	private transient String body;
+	private transient long timestamp;
+
+	// the form sent compressed, made on first use; this message if not
+	// worth compressing
+	private transient volatile Message compressed;
+
+	/**
+	 * Creates a message and encodes its frame.
+	 * @param roomName the name of the chat room the message was published in
+	 * @param sequence the position of the message in the chat room
+	 * @param publisher the name of the client that published the message, or
+	 * <code>null</code> if the message has no single publisher
+	 * @param body the text of the message
+	 * @param timestamp the publishing time, in milliseconds since the epoch
+	 */
+	public Message(String roomName, long sequence, String publisher, String body, long timestamp) {
+		this(roomName, sequence, sequence, publisher, body, timestamp);
+	}
+
+	private Message(String roomName, long firstSequence, long sequence, String publisher, String body,
+			long timestamp) {
+		this.roomName = roomName;
+		this.firstSequence = firstSequence;
+		this.sequence = sequence;
+		this.publisher = publisher;
+		this.body = body;
+		this.timestamp = timestamp;
+		this.frame = encode(roomName, sequence, sequence - firstSequence, publisher, body, timestamp);
+		this.decoded = true;
+	}
+
+	/**
+	 * Only used by the serialization, which then calls
+	 * {@link #readExternal(ObjectInput)}.
+	 */
+	public Message() {
+	}
+
+	/**
+	 * Wraps a frame previously obtained with {@link #getFrame()}.
+	 * @param frame the encoded message
+	 * @return the message, decoded lazily
+	 */
+	public static Message fromFrame(byte[] frame) {
+		if (frame.length > 0 && frame[0] != FORMAT)
+			return decodeLegacy(frame);
+		Message message = new Message();
+		message.frame = frame;
+		return message;
+	}
+
+	/**
+	 * Reads the sequence number of a frame without decoding the rest of it,
+	 * such as a frame of the log being skipped.
+	 * @param buffer the buffer holding the frame, at the position of its
+	 * first byte; the position is moved past the sequence number
+	 * @return the sequence number of the message
+	 */
+	public static long sequenceOf(ByteBuffer buffer) {
+		int start = buffer.position();
+		if (buffer.get(start) != FORMAT) {
+			// the former format: the int length of the room name, the name
+			buffer.position(start + 4 + buffer.getInt(start));
+			return buffer.getLong();
+		}
+		buffer.position(start + 1);
+		int length = Codec.getLength(buffer) - 1;
+		buffer.position(buffer.position() + Math.max(0, length));
+		return Codec.getVarint(buffer);
+	}
+
+	/**
+	 * Wraps a frame read by a {@link MessageList}, which already knows the
+	 * room name.
+	 * @param frame the encoded message
+	 * @param roomName the room name held by the frame, shared by the
+	 * messages of the list
+	 * @return the message, decoded lazily
+	 */
+	static Message fromFrame(byte[] frame, String roomName) {
+		Message message = new Message();
+		message.frame = frame;
+		message.roomName = roomName;
+		return message;
+	}
+
+	/**
+	 * Sets the frame of a message being deserialized.
+	 */
+	void setFrame(byte[] frame) {
+		this.frame = frame;
+	}
+
+	/**
+	 * Returns the form of the message sent to a client that enabled
+	 * compression: the message itself if it is too small to be worth
+	 * compressing, or a {@link CompressedMessage} of the same frame,
+	 * compressed on the first call.
+	 * @return the message to send
+	 */
+	public Message compressed() {
+		Message form = compressed;
+		if (form == null) {
+			// several threads may compress a message at the same time, they
+			// get the same bytes
+			form = this;
+			if (frame.length >= CompressedMessage.MIN_BYTES) {
+				byte[] deflated = CompressedMessage.deflate(frame);
+				if (deflated.length < frame.length)
+					form = new CompressedMessage(this, deflated);
+			}
+			compressed = form;
+		}
+		return form;
+	}
+
+	/**
+	 * Merges two consecutive messages of the same room into a single one
+	 * holding both texts, one per line. The merged message covers the
+	 * sequence numbers of both (see {@link #getFirstSequence()}).
+	 * @param first the older message
+	 * @param second the newer message
+	 * @return the merged message
+	 */
+	static Message coalesce(Message first, Message second) {
+		return new Message(second.getRoomName(), first.getFirstSequence(), second.getSequence(), null,
+				first + "\n" + second, second.getTimestamp());
+	}
+
+	private static byte[] encode(String roomName, long sequence, long span, String publisher, String body,
+			long timestamp) {
+		byte[] room = roomName.getBytes(StandardCharsets.UTF_8);
+		byte[] from = publisher == null ? null : publisher.getBytes(StandardCharsets.UTF_8);
+		byte[] text = body.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocate(1 + Codec.sizeOf(room) + Codec.sizeOf(sequence)
+				+ Codec.sizeOf(from) + Codec.sizeOf(text) + Codec.sizeOf(timestamp)
+				+ (span > 0 ? Codec.sizeOf(span) : 0));
+		buffer.put(FORMAT);
+		Codec.putString(buffer, room);
+		Codec.putVarint(buffer, sequence);
+		Codec.putString(buffer, from);
+		Codec.putString(buffer, text);
+		Codec.putVarint(buffer, timestamp);
+		if (span > 0)
+			Codec.putVarint(buffer, span);
+		return buffer.array();
+	}
+
+	private void decode() {
+		if (decoded)
+			return;
+		ByteBuffer buffer = ByteBuffer.wrap(frame, 1, frame.length - 1);
+		if (roomName == null) {
+			roomName = Codec.getString(buffer);
+		} else {
+			// the room name of a message list, shared by its messages
+			int length = Codec.getLength(buffer) - 1;
+			buffer.position(buffer.position() + length);
+		}
+		sequence = Codec.getVarint(buffer);
+		publisher = Codec.getString(buffer);
+		body = Codec.getString(buffer);
+		timestamp = Codec.getVarint(buffer);
+		firstSequence = sequence - (buffer.hasRemaining() ? Codec.getVarint(buffer) : 0);
+		decoded = true;
+	}
+
+	/**
+	 * Converts a frame of the former format, with <code>int</code> lengths
+	 * and <code>long</code> numbers.
+	 */
+	private static Message decodeLegacy(byte[] frame) {
+		ByteBuffer buffer = ByteBuffer.wrap(frame);
+		String roomName = readLegacyString(buffer);
+		long sequence = buffer.getLong();
+		String publisher = readLegacyString(buffer);
+		String body = readLegacyString(buffer);
+		return new Message(roomName, sequence, publisher, body, buffer.getLong());
+	}
+
+	private static String readLegacyString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0)
+			return null;
+		String s = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length);
+		return s;
+	}
+
+	/**
+	 * Returns the position in the frame of the fields following the room
+	 * name, which a {@link MessageList} writes without the room name.
+	 * @return the offset of the sequence number
+	 */
+	int recordOffset() {
+		ByteBuffer buffer = ByteBuffer.wrap(frame, 1, frame.length - 1);
+		int length = Codec.getLength(buffer) - 1;
+		return buffer.position() + length;
+	}
+
+	/**
+	 * Getter method for the encoded message. The array is shared and must
+	 * not be modified.
+	 * @return the frame of the message
+	 */
+	public byte[] getFrame() {
+		return frame;
+	}
+
+	/**
+	 * @return the name of the chat room the message was published in
+	 */
+	public String getRoomName() {
+		decode();
+		return roomName;
+	}
+
+	/**
+	 * @return the position of the message in its chat room, the newest one
+	 * for a merged message
+	 */
+	public long getSequence() {
+		decode();
+		return sequence;
+	}
+
+	/**
+	 * Getter method for the position of the oldest message merged into this
+	 * one, if the client queue overflowed (see {@link OverflowPolicy}).
+	 * @return the first sequence number covered by the message, equal to
+	 * {@link #getSequence()} if the message was not merged
+	 */
+	public long getFirstSequence() {
+		decode();
+		return firstSequence;
+	}
+
+	/**
+	 * @return the name of the publisher, or <code>null</code> for a merged message
+	 */
+	public String getPublisher() {
+		decode();
+		return publisher;
+	}
+
+	/**
+	 * @return the text of the message
+	 */
+	public String getBody() {
+		decode();
+		return body;
+	}
+
+	/**
+	 * @return the publishing time, in milliseconds since the epoch
+	 */
+	public long getTimestamp() {
+		decode();
+		return timestamp;
+	}
+
+	public void writeExternal(ObjectOutput out) throws IOException {
+		Codec.writeVarint(out, frame.length);
+		out.write(frame);
+	}
+
+	public void readExternal(ObjectInput in) throws IOException {
+		frame = new byte[Codec.readLength(in)];
+		in.readFully(frame);
+	}
+
+	/**
+	 * Formats the message as it is displayed in the chat window.
+	 * @return <code>[publisher]: body</code>
+	 */
+	@Override
+	public String toString() {
+		decode();
+		return publisher == null ? body : "[" + publisher + "]: " + body;
+	}
+}
@@ -0,0 +1,185 @@
+package os.chat.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Vector;
+
+import os.chat.codec.Codec;
+
+/**
+ * A list of messages, as sent to a client or a standby node, serialized
+ * with the {@link Codec}.
+ * <p>
+ * The room names of the messages are written once, in a table at the head
+ * of the list, and each message then refers to its room by its index in
+ * the table, followed by the rest of its frame:
+ * <pre>
+ * varint roomCount, string[roomCount] rooms
+ * varint size
+ * for each message:
+ *   varint room        (index in the table)
+ *   varint length &lt;&lt; 1 | compressed
+ *   byte[length]       (the frame after the room name)
+ *   or, if compressed,
+ *   varint frameLength
+ *   byte[length]       (the whole frame compressed, see {@link CompressedMessage})
+ * </pre>
+ * On the receiving side, the messages of a room share a single instance of
+ * its name.
+ * <p>
+ * It is a <code>Vector</code>, so it can be returned or passed wherever the
+ * remote interfaces expect one.
+ */
+public class MessageList extends Vector<Message> implements Externalizable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Creates an empty list.
+	 */
+	public MessageList() {
+	}
+
+	/**
+	 * Creates an empty list.
+	 * @param capacity the initial capacity
+	 */
+	public MessageList(int capacity) {
+		super(capacity);
+	}
+
+	/**
+	 * Creates a list holding the given messages.
+	 * @param messages the messages, in the order of their iterator
+	 */
+	public MessageList(Collection<Message> messages) {
+		super(messages);
+	}
+
+	/**
+	 * Encodes messages, for a transport other than RMI.
+	 * @param messages the messages
+	 * @return the bytes written by {@link #writeExternal(ObjectOutput)}
+	 */
+	public static byte[] encode(List<Message> messages) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * messages.size() + 16);
+		try {
+			write(new DataOutputStream(bytes), messages);
+		} catch (IOException e) {
+			// not thrown by a byte array
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes messages encoded by {@link #encode(List)}.
+	 * @param bytes the encoded messages
+	 * @return the messages
+	 */
+	public static MessageList decode(byte[] bytes) throws IOException {
+		MessageList messages = new MessageList();
+		messages.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+		return messages;
+	}
+
+	public synchronized void writeExternal(ObjectOutput out) throws IOException {
+		write(out, this);
+	}
+
+	public synchronized void readExternal(ObjectInput in) throws IOException {
+		read(in);
+	}
+
+	private static void write(DataOutput out, List<Message> messages) throws IOException {
+		int size = messages.size();
+		// the messages of a list almost always come from the same room, so a
+		// linear search of the table is enough
+		List<String> rooms = new ArrayList<String>(1);
+		int[] indexes = new int[size];
+		for (int i = 0; i < size; i++) {
+			String roomName = messages.get(i).getRoomName();
+			int index = rooms.indexOf(roomName);
+			if (index < 0) {
+				index = rooms.size();
+				rooms.add(roomName);
+			}
+			indexes[i] = index;
+		}
+		Codec.writeVarint(out, rooms.size());
+		for (String roomName : rooms) {
+			Codec.writeString(out, roomName);
+		}
+		Codec.writeVarint(out, size);
+		for (int i = 0; i < size; i++) {
+			Message message = messages.get(i);
+			Codec.writeVarint(out, indexes[i]);
+			byte[] frame = message.getFrame();
+			if (message instanceof CompressedMessage) {
+				byte[] compressed = ((CompressedMessage) message).getCompressed();
+				Codec.writeVarint(out, (long) compressed.length << 1 | 1);
+				Codec.writeVarint(out, frame.length);
+				out.write(compressed);
+			} else {
+				int offset = message.recordOffset();
+				Codec.writeVarint(out, (long) (frame.length - offset) << 1);
+				out.write(frame, offset, frame.length - offset);
+			}
+		}
+	}
+
+	private void read(DataInput in) throws IOException {
+		int roomCount = Codec.readLength(in);
+		String[] rooms = new String[roomCount];
+		byte[][] prefixes = new byte[roomCount][];
+		for (int i = 0; i < roomCount; i++) {
+			rooms[i] = Codec.readString(in);
+			if (rooms[i] == null)
+				throw new StreamCorruptedException("Message list without room name");
+			byte[] utf8 = rooms[i].getBytes(StandardCharsets.UTF_8);
+			ByteBuffer prefix = ByteBuffer.allocate(1 + Codec.sizeOf(utf8));
+			prefix.put(Message.FORMAT);
+			Codec.putString(prefix, utf8);
+			prefixes[i] = prefix.array();
+		}
+		int size = Codec.readLength(in);
+		ensureCapacity(Math.min(size, 1024));
+		for (int i = 0; i < size; i++) {
+			int room = Codec.readLength(in);
+			if (room >= roomCount)
+				throw new StreamCorruptedException("Invalid room index " + room);
+			long header = Codec.readVarint(in);
+			if (header >>> 1 > Codec.MAX_FRAME_SIZE)
+				throw new StreamCorruptedException("Invalid message length " + (header >>> 1));
+			int length = (int) (header >>> 1);
+			byte[] frame;
+			if ((header & 1) != 0) {
+				int frameLength = Codec.readLength(in);
+				byte[] compressed = new byte[length];
+				in.readFully(compressed);
+				frame = CompressedMessage.inflate(compressed, frameLength);
+			} else {
+				byte[] prefix = prefixes[room];
+				frame = new byte[prefix.length + length];
+				System.arraycopy(prefix, 0, frame, 0, prefix.length);
+				in.readFully(frame, prefix.length, length);
+			}
+			add(Message.fromFrame(frame, rooms[room]));
+		}
+	}
+}
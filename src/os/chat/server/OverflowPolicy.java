@@ -0,0 +1,44 @@
+package os.chat.server;
+
+/**
+ * What a {@link Subscriber} does with a new message when its outbound queue
+ * is full, i.e. when the client does not keep up with the room.
+ * <p>
+ * The policy is chosen with the <code>os.chat.queue.overflow</code> system
+ * property (one of the constant names below, <code>DROP_OLDEST</code> by
+ * default).
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * Discards the oldest pending message to make room for the new one.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Unregisters the client from the room: a client that is that far behind
+	 * is considered gone.
+	 */
+	DISCONNECT,
+
+	/**
+	 * Merges the two oldest pending messages into a single one, so that no
+	 * text is lost but the client receives fewer (larger) messages.
+	 */
+	COALESCE;
+
+	/**
+	 * Reads the policy from the system properties.
+	 * @return the configured policy, or {@link #DROP_OLDEST} if none or an
+	 * unknown one is configured
+	 */
+	public static OverflowPolicy fromProperties() {
+		String name = System.getProperty("os.chat.queue.overflow", DROP_OLDEST.name());
+		try {
+			return valueOf(name.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			System.out.println("Unknown overflow policy '" + name + "', using " + DROP_OLDEST);
+			return DROP_OLDEST;
+		}
+	}
+}
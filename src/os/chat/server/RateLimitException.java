@@ -0,0 +1,20 @@
+package os.chat.server;
+
+import java.rmi.RemoteException;
+
+/**
+ * Thrown to a client whose calls exceed a rate limit of the server: they are
+ * rejected before doing any work, and can be retried later.
+ */
+public class RateLimitException extends RemoteException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Creates the exception.
+	 * @param message which limit was exceeded
+	 */
+	public RateLimitException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,114 @@
+package os.chat.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets for many keys (client hosts, rooms), one per key.
+ * <p>
+ * Each bucket is a single <code>long</code>: the time at which it would be
+ * full again (the generic cell rate algorithm, equivalent to a token bucket
+ * of <code>burst</code> tokens refilled at <code>rate</code> tokens per
+ * second). Taking tokens is one compare-and-set, and only the first call of
+ * a key allocates its bucket.
+ * <p>
+ * A bucket that is full again is the same as no bucket at all, so such
+ * buckets are dropped from time to time by the calls taking tokens: the
+ * number of buckets follows the number of keys active in the last
+ * <code>burst / rate</code> seconds, not the number of keys ever seen.
+ */
+class RateLimiter {
+
+	private static final long SWEEP_INTERVAL = 1000000000L; // nanoseconds
+
+	/** The state of a bucket being dropped, which must be looked up again. */
+	private static final long EVICTED = Long.MAX_VALUE;
+
+	private final long interval; // nanoseconds per token
+	private final long tolerance; // nanoseconds of burst
+	private final int burst;
+	private final ConcurrentHashMap<Object, AtomicLong> buckets = new ConcurrentHashMap<Object, AtomicLong>();
+	private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+	/**
+	 * Creates the buckets of the limit <code>os.chat.limit.&lt;name&gt;</code>,
+	 * whose rate and burst are set by the <code>.rate</code> and
+	 * <code>.burst</code> properties.
+	 * @param name the name of the limit
+	 * @param rate the default number of tokens per second, 0 or less for no
+	 * limit
+	 * @param burst the default number of tokens of a full bucket
+	 * @return the buckets, or <code>null</code> if the limit is disabled
+	 */
+	static RateLimiter fromProperties(String name, double rate, int burst) {
+		rate = Double.parseDouble(System.getProperty("os.chat.limit." + name + ".rate", String.valueOf(rate)));
+		burst = Integer.getInteger("os.chat.limit." + name + ".burst", burst);
+		if (rate <= 0)
+			return null;
+		return new RateLimiter(rate, burst);
+	}
+
+	/**
+	 * Creates full buckets.
+	 * @param rate the number of tokens per second
+	 * @param burst the number of tokens of a full bucket
+	 */
+	RateLimiter(double rate, int burst) {
+		this.interval = Math.max(1, (long) (1e9 / rate));
+		this.burst = Math.max(1, burst);
+		this.tolerance = interval * this.burst;
+	}
+
+	/**
+	 * Takes tokens from the bucket of a key, if it has enough.
+	 * @param key the key
+	 * @param permits the number of tokens
+	 * @return <code>false</code> if the bucket does not have enough tokens,
+	 * in which case none are taken
+	 * @throws RateLimitException if more tokens are asked than a full bucket
+	 * holds: such a request could never be allowed
+	 */
+	boolean tryAcquire(Object key, int permits) throws RateLimitException {
+		if (permits > burst)
+			throw new RateLimitException(permits + " calls exceed the burst of " + burst + " of the rate limit");
+		long cost = interval * permits;
+		while (true) {
+			AtomicLong bucket = buckets.get(key);
+			if (bucket == null)
+				bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(Long.MIN_VALUE));
+			long now = System.nanoTime();
+			long current = bucket.get();
+			if (current == EVICTED) {
+				// being dropped by a sweep: take a new bucket
+				buckets.remove(key, bucket);
+				continue;
+			}
+			long next = Math.max(current, now) + cost;
+			if (next - now > tolerance)
+				return false;
+			if (bucket.compareAndSet(current, next)) {
+				sweep(now);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Drops the buckets that are full again, at most once per
+	 * {@link #SWEEP_INTERVAL}. A bucket is marked {@link #EVICTED} before it
+	 * is removed, so that no tokens are taken from a bucket no longer in the
+	 * map.
+	 */
+	private void sweep(long now) {
+		long last = lastSweep.get();
+		if (now - last < SWEEP_INTERVAL || !lastSweep.compareAndSet(last, now))
+			return;
+		for (Map.Entry<Object, AtomicLong> entry : buckets.entrySet()) {
+			AtomicLong bucket = entry.getValue();
+			long current = bucket.get();
+			if (current <= now && bucket.compareAndSet(current, EVICTED))
+				buckets.remove(entry.getKey(), bucket);
+		}
+	}
+}
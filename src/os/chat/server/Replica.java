@@ -0,0 +1,72 @@
+package os.chat.server;
+
+import java.util.List;
+import java.util.TreeMap;
+
+import os.chat.server.store.RoomSnapshot;
+
+/**
+ * The copy of a chat room kept by its standby node, to take over if the node
+ * hosting the room fails.
+ * <p>
+ * The replica is seeded with a snapshot of the room, then receives the
+ * messages published since, in batches. Batches may arrive out of order
+ * because the room does not wait for one to be acknowledged before sending
+ * the next: those following a missing one are held back until it arrives.
+ * <p>
+ * Each batch also tells the last sequence number published in the room,
+ * which may be ahead of the messages received. A room taken over from the
+ * replica numbers its next messages after it, so that the clients that
+ * received messages the replica never got do not drop new ones as
+ * duplicates.
+ */
+class Replica {
+
+	private final String roomName;
+	private final RoomHistory history = new RoomHistory();
+	private long lastSequence = 0;
+	private long publishedSequence = 0; // the last one the room told of
+	private final TreeMap<Long, List<Message>> early = new TreeMap<Long, List<Message>>();
+
+	/**
+	 * Creates the replica of a room from its snapshot.
+	 * @param snapshot the state of the room
+	 */
+	Replica(RoomSnapshot snapshot) {
+		this.roomName = snapshot.getRoomName();
+		for (Message message : snapshot.getHistory()) {
+			history.append(message);
+		}
+		lastSequence = snapshot.getLastSequence();
+		publishedSequence = lastSequence;
+	}
+
+	/**
+	 * Applies a batch of messages, in sequence order.
+	 * @param messages consecutive messages, oldest first
+	 * @param published the last sequence number published in the room when
+	 * the batch was sent
+	 */
+	synchronized void append(List<Message> messages, long published) {
+		publishedSequence = Math.max(publishedSequence, published);
+		if (messages.isEmpty())
+			return;
+		early.put(messages.get(0).getSequence(), messages);
+		while (!early.isEmpty() && early.firstKey() <= lastSequence + 1) {
+			for (Message message : early.pollFirstEntry().getValue()) {
+				if (message.getSequence() == lastSequence + 1) {
+					history.append(message);
+					lastSequence++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the state of the room, to host it from the replica, numbering
+	 * the next messages after the last one published
+	 */
+	synchronized RoomSnapshot snapshot() {
+		return new RoomSnapshot(roomName, Math.max(lastSequence, publishedSequence), history.since(0));
+	}
+}
@@ -0,0 +1,200 @@
+package os.chat.server;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import os.chat.log.Log;
+import os.chat.server.store.RoomSnapshot;
+
+/**
+ * Streams the messages published in a chat room to its standby node: the
+ * node that would host the room if the current one failed.
+ * <p>
+ * Publishing only queues the message. Sender threads send the queued
+ * messages in batches of at most <code>os.chat.replication.batchSize</code>,
+ * with up to <code>os.chat.replication.inFlight</code> batches on the way
+ * at once. The standby is first seeded with a snapshot of the room, and
+ * again after a failed call or a change of standby, so nothing is retried
+ * message by message.
+ * <p>
+ * With <code>os.chat.replication.sync=true</code>, {@link #await(long)}
+ * makes <code>publish</code> wait until the standby has the message.
+ */
+class Replicator {
+
+	static final boolean SYNC = Boolean.getBoolean("os.chat.replication.sync");
+	private static final int BATCH_SIZE = Integer.getInteger("os.chat.replication.batchSize", 256);
+	private static final int IN_FLIGHT = Math.max(1, Integer.getInteger("os.chat.replication.inFlight", 4));
+	private static final int QUEUE_CAPACITY = Integer.getInteger("os.chat.replication.queueCapacity", 100000);
+	private static final long SYNC_TIMEOUT_MS = Long.getLong("os.chat.replication.syncTimeoutMs", 1000);
+
+	private static final ExecutorService senders = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "replication-sender");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final ChatServer room;
+	private final Cluster cluster;
+
+	// guarded by this
+	private final ArrayDeque<Message> queue = new ArrayDeque<Message>();
+	private final ArrayDeque<long[]> inFlight = new ArrayDeque<long[]>(); // {last sequence, done}
+	private String standby = null; // the node seeded, null to seed again
+	private boolean seeding = false;
+	private long replicated = 0; // every message up to this one is on the standby
+	private long published = 0; // the last message queued
+
+	/**
+	 * Creates the replicator of a room.
+	 * @param room the chat room
+	 * @param cluster the nodes, to find the standby
+	 */
+	Replicator(ChatServer room, Cluster cluster) {
+		this.room = room;
+		this.cluster = cluster;
+	}
+
+	/**
+	 * Queues a message just published. Called with the publish lock held,
+	 * so the messages are queued in sequence order.
+	 * @param message the message
+	 */
+	synchronized void add(Message message) {
+		if (queue.size() >= QUEUE_CAPACITY) {
+			// too far behind: drop the backlog and seed the standby again
+			queue.clear();
+			standby = null;
+		}
+		queue.addLast(message);
+		published = message.getSequence();
+		pump();
+	}
+
+	/**
+	 * Seeds the standby again after a failed call, or a new standby after a
+	 * change of the live nodes, even if nothing is published. Run
+	 * periodically by the room.
+	 */
+	synchronized void retry() {
+		pump();
+	}
+
+	/**
+	 * Starts as many sends as the window allows. Called with the lock held.
+	 */
+	private void pump() {
+		if (seeding)
+			return;
+		String target = cluster.standby(room.getRoomName());
+		if (target == null) {
+			// alone, nobody to replicate to
+			if (!queue.isEmpty())
+				advance(queue.peekLast().getSequence());
+			queue.clear();
+			standby = null;
+			return;
+		}
+		if (!target.equals(standby)) {
+			seeding = true;
+			inFlight.clear();
+			senders.execute(() -> seed(target));
+			return;
+		}
+		while (!queue.isEmpty() && inFlight.size() < IN_FLIGHT) {
+			int size = Math.min(queue.size(), BATCH_SIZE);
+			List<Message> batch = new MessageList(size);
+			for (int i = 0; i < size; i++) {
+				batch.add(queue.pollFirst());
+			}
+			long[] entry = { batch.get(size - 1).getSequence(), 0 };
+			long last = published;
+			inFlight.addLast(entry);
+			senders.execute(() -> send(target, batch, last, entry));
+		}
+	}
+
+	/**
+	 * Sends the snapshot of the room to a new standby. The messages queued
+	 * meanwhile and already in the snapshot are skipped.
+	 */
+	private void seed(String target) {
+		RoomSnapshot snapshot = room.snapshot();
+		boolean seeded = false;
+		try {
+			cluster.node(target).seedReplica(snapshot);
+			seeded = true;
+		} catch (RemoteException | NotBoundException e) {
+			Log.warn("replica.seed.failed", "room", room.getRoomName(), "node", target, "cause", e.getMessage());
+			cluster.forget(target);
+		}
+		synchronized (this) {
+			seeding = false;
+			if (!seeded)
+				return;
+			standby = target;
+			while (!queue.isEmpty() && queue.peekFirst().getSequence() <= snapshot.getLastSequence()) {
+				queue.pollFirst();
+			}
+			advance(snapshot.getLastSequence());
+			pump();
+		}
+	}
+
+	private void send(String target, List<Message> batch, long last, long[] entry) {
+		boolean sent = false;
+		try {
+			cluster.node(target).replicate(room.getRoomName(), batch, last);
+			sent = true;
+		} catch (RemoteException | NotBoundException e) {
+			Log.warn("replicate.failed", "room", room.getRoomName(), "node", target, "cause", e.getMessage());
+			cluster.forget(target);
+		}
+		synchronized (this) {
+			if (!sent) {
+				// seeds the standby again on the next publish or retry
+				if (target.equals(standby))
+					standby = null;
+				return;
+			}
+			entry[1] = 1;
+			// the standby has everything up to the first batch still on the way
+			while (!inFlight.isEmpty() && inFlight.peekFirst()[1] == 1) {
+				advance(inFlight.pollFirst()[0]);
+			}
+			pump();
+		}
+	}
+
+	private void advance(long sequence) {
+		if (sequence > replicated) {
+			replicated = sequence;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Waits until the standby has a message, in synchronous mode.
+	 * @param sequence the sequence number of the message
+	 * @throws RemoteException if the standby did not get it within
+	 * <code>os.chat.replication.syncTimeoutMs</code> milliseconds
+	 */
+	synchronized void await(long sequence) throws RemoteException {
+		long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MS;
+		while (replicated < sequence) {
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0)
+				throw new RemoteException("Message " + sequence + " of room " + room.getRoomName() + " not replicated");
+			try {
+				wait(left);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RemoteException("Interrupted while waiting for the replication", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package os.chat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The last messages published in a chat room, kept in memory so that late
+ * joiners and reconnecting clients can catch up.
+ * <p>
+ * The history is a ring buffer preallocated with room for the last
+ * <code>os.chat.history.size</code> messages (1000 by default): publishing
+ * only stores a reference in the slot of the message's sequence number, it
+ * never allocates. When <code>os.chat.history.maxAgeMs</code> is set, the
+ * messages older than that are not replayed either.
+ * <p>
+ * The history is not thread-safe: the room only uses it while holding its
+ * publish lock.
+ */
+class RoomHistory {
+
+	private static final int SIZE = Integer.getInteger("os.chat.history.size", 1000);
+	private static final long MAX_AGE_MS = Long.getLong("os.chat.history.maxAgeMs", 0);
+
+	private final Message[] slots;
+	private long lastSequence = 0;
+
+	RoomHistory() {
+		slots = new Message[Math.max(1, SIZE)];
+	}
+
+	/**
+	 * Stores a message, overwriting the oldest one if the history is full.
+	 * Messages must be appended in sequence order.
+	 * @param message the message just published
+	 */
+	void append(Message message) {
+		lastSequence = message.getSequence();
+		slots[(int) (lastSequence % slots.length)] = message;
+	}
+
+	/**
+	 * @return the number of messages the history can hold
+	 */
+	int capacity() {
+		return slots.length;
+	}
+
+	/**
+	 * @return the sequence number of the last message appended, 0 if none
+	 */
+	long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * Collects the messages still in the history whose sequence number is at
+	 * least <code>fromSequence</code>, oldest first.
+	 * @param fromSequence the first sequence number wanted
+	 * @return the messages, possibly none
+	 */
+	List<Message> since(long fromSequence) {
+		return range(fromSequence, lastSequence);
+	}
+
+	/**
+	 * Collects the messages still in the history whose sequence number is
+	 * between <code>fromSequence</code> and <code>toSequence</code>
+	 * (inclusive), oldest first.
+	 * @param fromSequence the first sequence number wanted
+	 * @param toSequence the last sequence number wanted
+	 * @return the messages, possibly none
+	 */
+	List<Message> range(long fromSequence, long toSequence) {
+		long first = Math.max(Math.max(1, fromSequence), lastSequence - slots.length + 1);
+		long last = Math.min(toSequence, lastSequence);
+		long oldest = MAX_AGE_MS > 0 ? System.currentTimeMillis() - MAX_AGE_MS : Long.MIN_VALUE;
+		List<Message> messages = new ArrayList<Message>((int) Math.max(0, last - first + 1));
+		for (long sequence = first; sequence <= last; sequence++) {
+			Message message = slots[(int) (sequence % slots.length)];
+			if (message != null && message.getSequence() == sequence && message.getTimestamp() >= oldest)
+				messages.add(message);
+		}
+		return messages;
+	}
+}
@@ -0,0 +1,66 @@
+package os.chat.server;
+
+import java.io.Serializable;
+
+/**
+ * A snapshot of the state of a chat room, as returned by
+ * {@link ChatServerManagerInterface#getRoomInfo(String)}.
+ */
+public class RoomInfo implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String roomName;
+	private final int memberCount;
+	private final long messageCount;
+	private final double messageRate;
+
+	/**
+	 * Creates a snapshot of a chat room.
+	 * @param roomName the name of the chat room
+	 * @param memberCount the number of registered clients
+	 * @param messageCount the number of messages published since the room
+	 * was created
+	 * @param messageRate the recent number of messages published per second
+	 */
+	public RoomInfo(String roomName, int memberCount, long messageCount, double messageRate) {
+		this.roomName = roomName;
+		this.memberCount = memberCount;
+		this.messageCount = messageCount;
+		this.messageRate = messageRate;
+	}
+
+	/**
+	 * @return the name of the chat room
+	 */
+	public String getRoomName() {
+		return roomName;
+	}
+
+	/**
+	 * @return the number of registered clients
+	 */
+	public int getMemberCount() {
+		return memberCount;
+	}
+
+	/**
+	 * @return the number of messages published since the room was created
+	 */
+	public long getMessageCount() {
+		return messageCount;
+	}
+
+	/**
+	 * @return the recent number of messages published per second
+	 */
+	public double getMessageRate() {
+		return messageRate;
+	}
+
+	@Override
+	public String toString() {
+		return roomName + " (" + memberCount + " members, "
+				+ String.format("%.1f", messageRate) + " msg/s)";
+	}
+}
@@ -0,0 +1,336 @@
+package os.chat.server;
+
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.rmi.UnmarshalException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import os.chat.client.CommandsFromServer;
+import os.chat.log.Log;
+
+/**
+ * A client registered to a chat room, together with the messages that are
+ * still waiting to be sent to it.
+ * <p>
+ * Every subscriber has its own bounded outbound queue and acts as its own
+ * sender: {@link #send(Message)} only queues the message and returns, and the
+ * queue is drained by the {@link DeliveryEngine}, which runs at most one
+ * thread per subscriber at a time. A slow client therefore only delays its
+ * own messages and a failing one never stops the delivery to the others.
+ * <p>
+ * The messages queued within a short window (at most
+ * <code>os.chat.batch.size</code> messages or
+ * <code>os.chat.batch.lingerMs</code> milliseconds) are sent in a single
+ * {@link CommandsFromServer#receiveBatch(java.util.List)} call. Clients that
+ * do not know this call get one <code>receiveMsg</code> per message instead.
+ * <p>
+ * When the queue is full the configured {@link OverflowPolicy} applies, and
+ * a client whose callbacks keep failing is evicted from its room.
+ * <p>
+ * Clients that acknowledge the messages they receive get the unacknowledged
+ * ones again if their acks stop progressing for
+ * <code>os.chat.ack.timeoutMs</code> milliseconds, so that a lost batch or a
+ * message dropped on overflow is eventually delivered. Clients that never
+ * ack are left alone.
+ */
+class Subscriber implements Runnable {
+
+	/**
+	 * Maximum number of batches sent in one run before giving the sender
+	 * thread back to the other subscribers.
+	 */
+	private static final int MAX_BATCHES_PER_RUN = 4;
+
+	private static final int BATCH_SIZE = Integer.getInteger("os.chat.batch.size", 64);
+	private static final long BATCH_LINGER_MS = Long.getLong("os.chat.batch.lingerMs", 2);
+	private static final int QUEUE_CAPACITY = Math.max(1, Integer.getInteger("os.chat.queue.capacity", 1000));
+	private static final OverflowPolicy OVERFLOW_POLICY = OverflowPolicy.fromProperties();
+	private static final int MAX_FAILURES = Integer.getInteger("os.chat.delivery.maxFailures", 3);
+	static final long ACK_TIMEOUT_MS = Long.getLong("os.chat.ack.timeoutMs", 2000);
+
+	private final ChatServer room;
+	private final CommandsFromServer client;
+	private final DeliveryEngine engine;
+
+	private final ArrayDeque<Message> outbound = new ArrayDeque<Message>();
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private volatile boolean closed = false;
+	private int failures = 0; // only touched by the sender thread
+	private volatile boolean batching = true;
+	private volatile boolean compression = false;
+	private final AtomicReference<List<Message>> replay = new AtomicReference<List<Message>>();
+	private volatile long lastQueued = 0;
+	private volatile long acknowledged = -1; // -1 until the client acks
+	private volatile long lastAckTime = 0;
+	private volatile long leaseExpiry = Long.MAX_VALUE;
+
+	/**
+	 * Creates the subscriber of <code>client</code> in the chat room
+	 * <code>room</code>.
+	 * @param room the chat room
+	 * @param client the client to deliver messages to
+	 * @param engine the engine running the sender threads
+	 */
+	Subscriber(ChatServer room, CommandsFromServer client, DeliveryEngine engine) {
+		this.room = room;
+		this.client = client;
+		this.engine = engine;
+	}
+
+	/**
+	 * Getter method for the client of this subscriber.
+	 * @return the client
+	 */
+	CommandsFromServer getClient() {
+		return client;
+	}
+
+	/**
+	 * Queues a message for this client and makes sure a sender thread will
+	 * deliver it.
+	 * @param message the message to deliver
+	 * @return <code>false</code> if the client must be disconnected because
+	 * its queue overflowed, <code>true</code> otherwise
+	 */
+	boolean send(Message message) {
+		if (closed)
+			return true;
+		boolean full;
+		synchronized (outbound) {
+			if (outbound.size() >= QUEUE_CAPACITY) {
+				switch (OVERFLOW_POLICY) {
+				case DISCONNECT:
+					return false;
+				case COALESCE:
+					Message first = outbound.pollFirst();
+					if (outbound.isEmpty()) {
+						// a queue of one message: merged with the new one
+						message = Message.coalesce(first, message);
+					} else {
+						outbound.addFirst(Message.coalesce(first, outbound.pollFirst()));
+					}
+					break;
+				default:
+					outbound.pollFirst();
+				}
+				room.getMetrics().dropped();
+			}
+			outbound.addLast(message);
+			lastQueued = message.getSequence();
+			full = outbound.size() >= BATCH_SIZE;
+		}
+		if (full || BATCH_LINGER_MS <= 0)
+			schedule();
+		else
+			scheduleAfter(BATCH_LINGER_MS);
+		return true;
+	}
+
+	/**
+	 * Sends past messages to a subscriber that was just registered, in a
+	 * single batch and before any message queued with {@link #send(Message)}.
+	 * Also used to resend unacknowledged messages.
+	 * @param messages the messages to replay, oldest first
+	 */
+	void replay(List<Message> messages) {
+		if (messages.isEmpty())
+			return;
+		lastQueued = Math.max(lastQueued, messages.get(messages.size() - 1).getSequence());
+		replay.set(new MessageList(messages));
+		schedule();
+	}
+
+	/**
+	 * Records that the client received every message up to
+	 * <code>sequence</code>.
+	 * @param sequence the sequence number acknowledged
+	 */
+	void acknowledge(long sequence) {
+		if (sequence > acknowledged) {
+			acknowledged = sequence;
+			lastAckTime = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Tells whether the acks of the client stopped progressing while
+	 * messages are outstanding. If so, the next check only happens after
+	 * another timeout, to give the resent messages time to arrive.
+	 * @param now the current time in milliseconds
+	 * @return the first sequence number to resend, or -1 if none
+	 */
+	long resendFrom(long now) {
+		long acked = acknowledged;
+		if (closed || acked < 0 || lastQueued <= acked || now - lastAckTime < ACK_TIMEOUT_MS)
+			return -1;
+		lastAckTime = now;
+		return acked + 1;
+	}
+
+	/**
+	 * Extends the lease of the client.
+	 * @param expiry the new expiry time in milliseconds
+	 */
+	void renewLease(long expiry) {
+		leaseExpiry = expiry;
+	}
+
+	/**
+	 * @return the time at which the lease of the client expires, in
+	 * milliseconds
+	 */
+	long getLeaseExpiry() {
+		return leaseExpiry;
+	}
+
+	/**
+	 * Evicts the client from its room because it did not renew its lease.
+	 */
+	void expire() {
+		room.evict(this);
+	}
+
+	/**
+	 * @return <code>true</code> once the subscriber left its room
+	 */
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Sends the large messages compressed from now on. The client must have
+	 * asked for it.
+	 */
+	void enableCompression() {
+		compression = true;
+	}
+
+	/**
+	 * @return the number of messages waiting to be sent to the client
+	 */
+	int getQueueSize() {
+		synchronized (outbound) {
+			return outbound.size();
+		}
+	}
+
+	/**
+	 * Drops the pending messages and stops any further delivery.
+	 */
+	void close() {
+		closed = true;
+		synchronized (outbound) {
+			outbound.clear();
+		}
+	}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true))
+			engine.schedule(this);
+	}
+
+	private void scheduleAfter(long delayMs) {
+		if (scheduled.compareAndSet(false, true))
+			engine.scheduleAfter(this, delayMs);
+	}
+
+	private MessageList pollBatch() {
+		synchronized (outbound) {
+			int size = Math.min(outbound.size(), BATCH_SIZE);
+			if (size == 0)
+				return null;
+			MessageList batch = new MessageList(size);
+			for (int i = 0; i < size; i++) {
+				batch.add(outbound.pollFirst());
+			}
+			return batch;
+		}
+	}
+
+	/**
+	 * Sends a batch to the client, falling back to one
+	 * <code>receiveMsg</code> per message if the client does not support
+	 * batches.
+	 */
+	private void deliver(List<Message> batch) throws RemoteException {
+		if (batching) {
+			try {
+				client.receiveBatch(compression ? compress(batch) : batch);
+				return;
+			} catch (RemoteException e) {
+				if (!isUnsupported(e))
+					throw e;
+				Log.info("batches.unsupported", "client", client);
+				batching = false;
+			}
+		}
+		for (Message message : batch) {
+			client.receiveMsg(message.getRoomName(), message.toString());
+		}
+	}
+
+	private static List<Message> compress(List<Message> batch) {
+		MessageList compressed = new MessageList(batch.size());
+		for (Message message : batch) {
+			compressed.add(message.compressed());
+		}
+		return compressed;
+	}
+
+	/**
+	 * Tells whether a failed call was rejected because the client does not
+	 * know the method (an unrecognized method hash) or the {@link Message}
+	 * class, rather than because of a communication failure.
+	 */
+	private static boolean isUnsupported(RemoteException e) {
+		// the remote side reports the failure in a ServerException; an
+		// UnmarshalException raised here means the connection dropped while
+		// reading the reply, which is a communication failure
+		if (!(e instanceof ServerException) || !(e.getCause() instanceof UnmarshalException))
+			return false;
+		UnmarshalException cause = (UnmarshalException) e.getCause();
+		return String.valueOf(cause.getMessage()).startsWith("unrecognized method hash")
+				|| cause.detail instanceof ClassNotFoundException;
+	}
+
+	/**
+	 * Sends the pending messages to the client, in order. Called by the
+	 * sender threads of the {@link DeliveryEngine} only.
+	 */
+	public void run() {
+		List<Message> batch = replay.getAndSet(null);
+		int sent = 0;
+		if (batch == null)
+			batch = pollBatch();
+		while (!closed && sent < MAX_BATCHES_PER_RUN && batch != null) {
+			try {
+				long start = System.nanoTime();
+				deliver(batch);
+				room.getMetrics().delivered(batch.size(), System.nanoTime() - start, batch.get(0).getTimestamp());
+				failures = 0;
+			} catch (RemoteException e) {
+				room.getMetrics().failed();
+				failures++;
+				Log.warn("deliver.failed", "room", room.getRoomName(), "client", client, "messages", batch.size(),
+						"failures", failures, "cause", e.getMessage());
+				if (failures >= MAX_FAILURES) {
+					room.evict(this);
+					return;
+				}
+			}
+			sent++;
+			batch = sent < MAX_BATCHES_PER_RUN ? pollBatch() : null;
+		}
+		scheduled.set(false);
+		// a message or a replay may have been queued after the last poll
+		boolean pending = replay.get() != null;
+		synchronized (outbound) {
+			pending |= !outbound.isEmpty();
+		}
+		if (pending && !closed)
+			schedule();
+	}
+}
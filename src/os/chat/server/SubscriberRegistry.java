@@ -0,0 +1,77 @@
+package os.chat.server;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import os.chat.client.CommandsFromServer;
+
+/**
+ * The set of clients registered to a chat room.
+ * <p>
+ * The registry is built for a room that is broadcast to much more often than
+ * it is joined or left. Subscribers are kept in a concurrent hash map keyed
+ * by their client stub (RMI stubs of the same remote object are equal), so
+ * that joining and leaving are O(1) and atomic, and iterating never takes a
+ * lock nor throws a <code>ConcurrentModificationException</code>: a
+ * broadcast sees every subscriber that was registered when it started and
+ * was not removed meanwhile, and may or may not see those that join during
+ * the broadcast.
+ */
+class SubscriberRegistry implements Iterable<Subscriber> {
+
+	private final ConcurrentHashMap<CommandsFromServer, Subscriber> subscribers =
+			new ConcurrentHashMap<CommandsFromServer, Subscriber>();
+
+	/**
+	 * Adds a subscriber unless its client is already registered.
+	 * @param subscriber the subscriber to add
+	 * @return <code>true</code> if the subscriber was added,
+	 * <code>false</code> if the client was already registered
+	 */
+	boolean add(Subscriber subscriber) {
+		return subscribers.putIfAbsent(subscriber.getClient(), subscriber) == null;
+	}
+
+	/**
+	 * Removes the subscriber of a client.
+	 * @param client the client to remove
+	 * @return the removed subscriber, or <code>null</code> if the client was
+	 * not registered
+	 */
+	Subscriber remove(CommandsFromServer client) {
+		return subscribers.remove(client);
+	}
+
+	/**
+	 * Removes a subscriber, but only if it is still the one registered for
+	 * its client (the client may have left and joined again meanwhile).
+	 * @param subscriber the subscriber to remove
+	 * @return <code>true</code> if the subscriber was removed
+	 */
+	boolean remove(Subscriber subscriber) {
+		return subscribers.remove(subscriber.getClient(), subscriber);
+	}
+
+	/**
+	 * Retrieves the subscriber of a client.
+	 * @param client the client
+	 * @return its subscriber, or <code>null</code> if it is not registered
+	 */
+	Subscriber get(CommandsFromServer client) {
+		return subscribers.get(client);
+	}
+
+	/**
+	 * @return the number of registered clients
+	 */
+	int size() {
+		return subscribers.size();
+	}
+
+	/**
+	 * Iterates over the registered subscribers without locking.
+	 */
+	public Iterator<Subscriber> iterator() {
+		return subscribers.values().iterator();
+	}
+}
@@ -0,0 +1,132 @@
+package os.chat.server.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Metrics exposed through JMX: the attributes are read from a
+ * {@link #snapshot()} taken at most once per second, so that reading every
+ * attribute does not take a snapshot each.
+ */
+public abstract class ChatMetrics implements ChatMetricsMXBean {
+
+	private static final long CACHE_NANOS = 1000000000L;
+
+	private ObjectName name;
+	private volatile MetricsSnapshot cached;
+	private volatile long cachedAt;
+
+	/**
+	 * Takes a snapshot of the metrics.
+	 * @return the snapshot
+	 */
+	public abstract MetricsSnapshot snapshot();
+
+	/**
+	 * Registers the metrics to the platform MBean server.
+	 * @param name the JMX name
+	 */
+	synchronized void register(String name) {
+		try {
+			this.name = new ObjectName(name);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, this.name);
+		} catch (JMException e) {
+			System.out.println("Can not register the metrics " + name);
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Removes the metrics from the platform MBean server.
+	 */
+	public synchronized void unregister() {
+		if (name == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			// already removed
+		}
+		name = null;
+	}
+
+	/**
+	 * @return the last snapshot, taken again if it is older than a second
+	 */
+	private MetricsSnapshot cached() {
+		MetricsSnapshot snapshot = cached;
+		long now = System.nanoTime();
+		if (snapshot == null || now - cachedAt > CACHE_NANOS) {
+			snapshot = snapshot();
+			cachedAt = now;
+			cached = snapshot;
+		}
+		return snapshot;
+	}
+
+	public int getRoomCount() {
+		return cached().getRoomCount();
+	}
+
+	public long getPublishedMessages() {
+		return cached().getPublishedMessages();
+	}
+
+	public double getMessageRate() {
+		return cached().getMessageRate();
+	}
+
+	public int getSubscriberCount() {
+		return cached().getSubscriberCount();
+	}
+
+	public long getQueueDepth() {
+		return cached().getQueueDepth();
+	}
+
+	public long getDeliveredMessages() {
+		return cached().getDeliveredMessages();
+	}
+
+	public long getFailedDeliveries() {
+		return cached().getFailedDeliveries();
+	}
+
+	public long getDroppedMessages() {
+		return cached().getDroppedMessages();
+	}
+
+	public long getEvictions() {
+		return cached().getEvictions();
+	}
+
+	public long getRejectedMessages() {
+		return cached().getRejectedMessages();
+	}
+
+	public long getFanOut99Micros() {
+		return cached().getFanOut().getPercentile(99) / 1000;
+	}
+
+	public long getCallbackLatency50Micros() {
+		return cached().getCallbackLatency().getPercentile(50) / 1000;
+	}
+
+	public long getCallbackLatency99Micros() {
+		return cached().getCallbackLatency().getPercentile(99) / 1000;
+	}
+
+	public long getCallbackLatencyMaxMicros() {
+		return cached().getCallbackLatency().getMax() / 1000;
+	}
+
+	public long getDeliveryLatency50Millis() {
+		return cached().getDeliveryLatency().getPercentile(50) / 1000000;
+	}
+
+	public long getDeliveryLatency99Millis() {
+		return cached().getDeliveryLatency().getPercentile(99) / 1000000;
+	}
+}
@@ -0,0 +1,41 @@
+package os.chat.server.metrics;
+
+/**
+ * The metrics of a chat room or of a server node, as exposed through JMX
+ * under <code>os.chat:type=Room,name=...</code> and
+ * <code>os.chat:type=Node</code>.
+ */
+public interface ChatMetricsMXBean {
+
+	public int getRoomCount();
+
+	public long getPublishedMessages();
+
+	public double getMessageRate();
+
+	public int getSubscriberCount();
+
+	public long getQueueDepth();
+
+	public long getDeliveredMessages();
+
+	public long getFailedDeliveries();
+
+	public long getDroppedMessages();
+
+	public long getEvictions();
+
+	public long getRejectedMessages();
+
+	public long getFanOut99Micros();
+
+	public long getCallbackLatency50Micros();
+
+	public long getCallbackLatency99Micros();
+
+	public long getCallbackLatencyMaxMicros();
+
+	public long getDeliveryLatency50Millis();
+
+	public long getDeliveryLatency99Millis();
+}
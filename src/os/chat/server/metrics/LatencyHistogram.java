@@ -0,0 +1,176 @@
+package os.chat.server.metrics;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * A lock-free histogram of durations, in nanoseconds.
+ * <p>
+ * The buckets are log-linear, as in HdrHistogram: every power of two is
+ * split into 16 equal buckets, so that a recorded value is known within about
+ * 6%, from one nanosecond to a minute (longer durations count as a minute).
+ * Recording is a single atomic increment, with no allocation; the buckets
+ * are only allocated by the first value recorded, so that idle rooms cost
+ * nothing.
+ */
+public class LatencyHistogram {
+
+	private static final int PRECISION_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << PRECISION_BITS;
+	private static final int MAX_EXPONENT = 36; // 2^36 ns, about 69 s
+	private static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+	private static final int BUCKETS = (MAX_EXPONENT - PRECISION_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicReference<AtomicLongArray> counts = new AtomicReference<AtomicLongArray>();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Records a duration.
+	 * @param nanos the duration in nanoseconds, negative values count as 0
+	 */
+	public void record(long nanos) {
+		AtomicLongArray buckets = counts.get();
+		if (buckets == null) {
+			counts.compareAndSet(null, new AtomicLongArray(BUCKETS));
+			buckets = counts.get();
+		}
+		long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+		buckets.incrementAndGet(index(value));
+		max.accumulate(value);
+	}
+
+	private static int index(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - PRECISION_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * @return the middle of the values counted in a bucket
+	 */
+	private static long value(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long low = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+		return low + (1L << shift) / 2;
+	}
+
+	/**
+	 * Copies the counts. The values recorded meanwhile may or may not be
+	 * included.
+	 * @return the snapshot
+	 */
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		AtomicLongArray buckets = counts.get();
+		if (buckets != null) {
+			for (int i = 0; i < BUCKETS; i++) {
+				copy[i] = buckets.get(i);
+			}
+		}
+		return new Snapshot(copy, max.get());
+	}
+
+	/**
+	 * Adds up the counts of several histograms, such as those of the rooms
+	 * of a node, without copying each one.
+	 * @param histograms the histograms
+	 * @return the snapshot of their sum
+	 */
+	public static Snapshot total(Iterable<LatencyHistogram> histograms) {
+		long[] sum = new long[BUCKETS];
+		long max = 0;
+		for (LatencyHistogram histogram : histograms) {
+			AtomicLongArray buckets = histogram.counts.get();
+			if (buckets == null)
+				continue;
+			for (int i = 0; i < BUCKETS; i++) {
+				sum[i] += buckets.get(i);
+			}
+			max = Math.max(max, histogram.max.get());
+		}
+		return new Snapshot(sum, max);
+	}
+
+	/**
+	 * The counts of a histogram at some point, which can be sent to a
+	 * monitoring client and merged with others. Snapshots are immutable.
+	 */
+	public static class Snapshot implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private static final Snapshot EMPTY = new Snapshot(new long[BUCKETS], 0);
+
+		private final long[] counts;
+		private final long max;
+
+		private Snapshot(long[] counts, long max) {
+			this.counts = counts;
+			this.max = max;
+		}
+
+		/**
+		 * @return an empty snapshot, to merge others into. The same instance
+		 * is returned every time, so that it is serialized once in a stream.
+		 */
+		public static Snapshot empty() {
+			return EMPTY;
+		}
+
+		/**
+		 * Adds up two snapshots, e.g. those of several rooms.
+		 * @param other the other snapshot
+		 * @return the sum of both
+		 */
+		public Snapshot merge(Snapshot other) {
+			long[] sum = counts.clone();
+			for (int i = 0; i < BUCKETS; i++) {
+				sum[i] += other.counts[i];
+			}
+			return new Snapshot(sum, Math.max(max, other.max));
+		}
+
+		/**
+		 * @return the number of values recorded
+		 */
+		public long getCount() {
+			long count = 0;
+			for (long c : counts) {
+				count += c;
+			}
+			return count;
+		}
+
+		/**
+		 * @return the largest value recorded, in nanoseconds
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * Getter method for a percentile of the values.
+		 * @param percentile between 0 and 100
+		 * @return the value below which <code>percentile</code> percent of
+		 * the values fall, in nanoseconds, 0 if nothing was recorded
+		 */
+		public long getPercentile(double percentile) {
+			long count = getCount();
+			if (count == 0)
+				return 0;
+			long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= rank)
+					return Math.min(value(i), max);
+			}
+			return max;
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package os.chat.server.metrics;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The metrics of a chat room, or the totals of a server node, at some
+ * point. Returned by
+ * {@link os.chat.server.ChatServerManagerInterface#getMetrics()}.
+ * <p>
+ * The counts are totals since the room was created; the monitoring client
+ * computes rates from two snapshots, or uses {@link #getMessageRate()}.
+ * <p>
+ * The snapshot of a node has the latency histograms of the whole node and
+ * only the counters of each room; the histograms of a room are returned by
+ * {@link os.chat.server.ChatServerManagerInterface#getRoomMetrics(String)}.
+ */
+public class MetricsSnapshot implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String name;
+	private final int roomCount;
+	private final long publishedMessages;
+	private final double messageRate;
+	private final int subscriberCount;
+	private final long queueDepth;
+	private final long deliveredMessages;
+	private final long failedDeliveries;
+	private final long droppedMessages;
+	private final long evictions;
+	private final long rejectedMessages;
+	private final LatencyHistogram.Snapshot fanOut;
+	private final LatencyHistogram.Snapshot callbackLatency;
+	private final LatencyHistogram.Snapshot deliveryLatency;
+	private final Map<String, MetricsSnapshot> rooms;
+
+	MetricsSnapshot(String name, int roomCount, long publishedMessages, double messageRate, int subscriberCount,
+			long queueDepth, long deliveredMessages, long failedDeliveries, long droppedMessages, long evictions,
+			long rejectedMessages, LatencyHistogram.Snapshot fanOut, LatencyHistogram.Snapshot callbackLatency,
+			LatencyHistogram.Snapshot deliveryLatency, Map<String, MetricsSnapshot> rooms) {
+		this.name = name;
+		this.roomCount = roomCount;
+		this.publishedMessages = publishedMessages;
+		this.messageRate = messageRate;
+		this.subscriberCount = subscriberCount;
+		this.queueDepth = queueDepth;
+		this.deliveredMessages = deliveredMessages;
+		this.failedDeliveries = failedDeliveries;
+		this.droppedMessages = droppedMessages;
+		this.evictions = evictions;
+		this.rejectedMessages = rejectedMessages;
+		this.fanOut = fanOut;
+		this.callbackLatency = callbackLatency;
+		this.deliveryLatency = deliveryLatency;
+		this.rooms = rooms;
+	}
+
+	/**
+	 * Adds up the counters of the rooms of a node.
+	 * @param nodeId the identifier of the node
+	 * @param rooms the snapshots of its rooms
+	 * @param fanOut the fan-out histogram of the node
+	 * @param callback the callback latency histogram of the node
+	 * @param delivery the delivery latency histogram of the node
+	 * @return the totals of the node, with the rooms
+	 */
+	static MetricsSnapshot total(String nodeId, Iterable<MetricsSnapshot> rooms, LatencyHistogram.Snapshot fanOut,
+			LatencyHistogram.Snapshot callback, LatencyHistogram.Snapshot delivery) {
+		TreeMap<String, MetricsSnapshot> byName = new TreeMap<String, MetricsSnapshot>();
+		long published = 0, queueDepth = 0, delivered = 0, failed = 0, dropped = 0, evictions = 0, rejected = 0;
+		double rate = 0;
+		int subscribers = 0;
+		for (MetricsSnapshot room : rooms) {
+			byName.put(room.name, room);
+			published += room.publishedMessages;
+			rate += room.messageRate;
+			subscribers += room.subscriberCount;
+			queueDepth += room.queueDepth;
+			delivered += room.deliveredMessages;
+			failed += room.failedDeliveries;
+			dropped += room.droppedMessages;
+			evictions += room.evictions;
+			rejected += room.rejectedMessages;
+		}
+		return new MetricsSnapshot(nodeId, byName.size(), published, rate, subscribers, queueDepth, delivered,
+				failed, dropped, evictions, rejected, fanOut, callback, delivery, Collections.unmodifiableMap(byName));
+	}
+
+	/**
+	 * @return the name of the room, or the identifier of the node
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the number of rooms, 1 for a room
+	 */
+	public int getRoomCount() {
+		return roomCount;
+	}
+
+	/**
+	 * @return the number of messages published
+	 */
+	public long getPublishedMessages() {
+		return publishedMessages;
+	}
+
+	/**
+	 * @return the recent number of messages published per second
+	 */
+	public double getMessageRate() {
+		return messageRate;
+	}
+
+	/**
+	 * @return the number of registered clients
+	 */
+	public int getSubscriberCount() {
+		return subscriberCount;
+	}
+
+	/**
+	 * @return the number of messages waiting to be sent to the clients
+	 */
+	public long getQueueDepth() {
+		return queueDepth;
+	}
+
+	/**
+	 * @return the number of messages delivered, one per recipient
+	 */
+	public long getDeliveredMessages() {
+		return deliveredMessages;
+	}
+
+	/**
+	 * @return the number of callbacks that failed
+	 */
+	public long getFailedDeliveries() {
+		return failedDeliveries;
+	}
+
+	/**
+	 * @return the number of messages dropped or coalesced because a client
+	 * queue was full
+	 */
+	public long getDroppedMessages() {
+		return droppedMessages;
+	}
+
+	/**
+	 * @return the number of clients evicted
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return the number of messages rejected by a rate limit
+	 */
+	public long getRejectedMessages() {
+		return rejectedMessages;
+	}
+
+	/**
+	 * @return the time taken to queue each message for all the clients of
+	 * its room
+	 */
+	public LatencyHistogram.Snapshot getFanOut() {
+		return fanOut;
+	}
+
+	/**
+	 * @return the duration of each callback to a client
+	 */
+	public LatencyHistogram.Snapshot getCallbackLatency() {
+		return callbackLatency;
+	}
+
+	/**
+	 * @return the time from the publication of a message to the end of its
+	 * callback, for each recipient. Its maximum over the recipients of a
+	 * message is the time to complete the fan-out. Measured with the
+	 * millisecond clock.
+	 */
+	public LatencyHistogram.Snapshot getDeliveryLatency() {
+		return deliveryLatency;
+	}
+
+	/**
+	 * @return the snapshots of the rooms of a node, by name, empty for a
+	 * room. Their latency histograms are empty: the node has their totals,
+	 * and the snapshot of a single room has its own.
+	 */
+	public Map<String, MetricsSnapshot> getRooms() {
+		return rooms;
+	}
+
+	@Override
+	public String toString() {
+		return name + ": " + publishedMessages + " published (" + String.format("%.1f", messageRate) + "/s), "
+				+ subscriberCount + " subscriber(s), queue " + queueDepth + ", " + deliveredMessages + " delivered, "
+				+ failedDeliveries + " failed, " + droppedMessages + " dropped, " + rejectedMessages
+				+ " rejected, callback p50/p99 "
+				+ callbackLatency.getPercentile(50) / 1000 + "/" + callbackLatency.getPercentile(99) / 1000 + " us";
+	}
+}
@@ -0,0 +1,48 @@
+package os.chat.server.metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.function.Supplier;
+
+/**
+ * The metrics of a server node: the totals of the rooms it hosts.
+ */
+public class NodeMetrics extends ChatMetrics {
+
+	private final String nodeId;
+	private final Supplier<Collection<RoomMetrics>> rooms;
+
+	/**
+	 * Creates the metrics of a node and registers them to JMX.
+	 * @param nodeId the identifier of the node
+	 * @param rooms reads the metrics of the rooms hosted by the node
+	 */
+	public NodeMetrics(String nodeId, Supplier<Collection<RoomMetrics>> rooms) {
+		this.nodeId = nodeId;
+		this.rooms = rooms;
+		register("os.chat:type=Node");
+	}
+
+	/**
+	 * Takes a snapshot of the totals of the node, with the counters of each
+	 * room. The latency histograms are those of the whole node: the
+	 * histograms of a room are in its own snapshot
+	 * ({@link RoomMetrics#snapshot()}).
+	 * @return the snapshot
+	 */
+	public MetricsSnapshot snapshot() {
+		Collection<RoomMetrics> all = rooms.get();
+		ArrayList<MetricsSnapshot> snapshots = new ArrayList<MetricsSnapshot>(all.size());
+		ArrayList<LatencyHistogram> fanOut = new ArrayList<LatencyHistogram>(all.size());
+		ArrayList<LatencyHistogram> callback = new ArrayList<LatencyHistogram>(all.size());
+		ArrayList<LatencyHistogram> delivery = new ArrayList<LatencyHistogram>(all.size());
+		for (RoomMetrics room : all) {
+			snapshots.add(room.snapshot(false));
+			fanOut.add(room.fanOut);
+			callback.add(room.callbackLatency);
+			delivery.add(room.deliveryLatency);
+		}
+		return MetricsSnapshot.total(nodeId, snapshots, LatencyHistogram.total(fanOut),
+				LatencyHistogram.total(callback), LatencyHistogram.total(delivery));
+	}
+}
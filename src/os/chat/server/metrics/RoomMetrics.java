@@ -0,0 +1,156 @@
+package os.chat.server.metrics;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+import javax.management.ObjectName;
+
+/**
+ * The metrics of one chat room.
+ * <p>
+ * The counters are <code>LongAdder</code>s and the latencies
+ * {@link LatencyHistogram}s, so that the publishing and sender threads
+ * record them without contending; the number of subscribers and the depth of
+ * their queues are only read when a snapshot is taken.
+ */
+public class RoomMetrics extends ChatMetrics {
+
+	private final String roomName;
+	private final IntSupplier subscriberCount;
+	private final LongSupplier queueDepth;
+
+	private final LongAdder published = new LongAdder();
+	private final LongAdder delivered = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	// read by NodeMetrics, to total the histograms of the node
+	final LatencyHistogram fanOut = new LatencyHistogram();
+	final LatencyHistogram callbackLatency = new LatencyHistogram();
+	final LatencyHistogram deliveryLatency = new LatencyHistogram();
+
+	// guarded by this
+	private long rateSampleTime = System.nanoTime();
+	private long rateSampleCount = 0;
+	private double messageRate = 0;
+
+	/**
+	 * Creates the metrics of a room and registers them to JMX.
+	 * @param roomName the name of the room
+	 * @param subscriberCount reads the number of registered clients
+	 * @param queueDepth reads the number of messages waiting in their queues
+	 */
+	public RoomMetrics(String roomName, IntSupplier subscriberCount, LongSupplier queueDepth) {
+		this.roomName = roomName;
+		this.subscriberCount = subscriberCount;
+		this.queueDepth = queueDepth;
+		register("os.chat:type=Room,name=" + ObjectName.quote(roomName));
+	}
+
+	/**
+	 * Counts published messages.
+	 * @param count the number of messages
+	 */
+	public void published(int count) {
+		published.add(count);
+	}
+
+	/**
+	 * Records the time taken to queue a message for every client.
+	 * @param nanos the duration in nanoseconds
+	 */
+	public void fanOut(long nanos) {
+		fanOut.record(nanos);
+	}
+
+	/**
+	 * Records a successful callback.
+	 * @param count the number of messages delivered by the callback
+	 * @param nanos the duration of the callback in nanoseconds
+	 * @param oldestTimestamp the publication time of the oldest message, in
+	 * milliseconds
+	 */
+	public void delivered(int count, long nanos, long oldestTimestamp) {
+		delivered.add(count);
+		callbackLatency.record(nanos);
+		deliveryLatency.record((System.currentTimeMillis() - oldestTimestamp) * 1000000);
+	}
+
+	/**
+	 * Counts a failed callback.
+	 */
+	public void failed() {
+		failed.increment();
+	}
+
+	/**
+	 * Counts a message dropped or coalesced because a client queue was full.
+	 */
+	public void dropped() {
+		dropped.increment();
+	}
+
+	/**
+	 * Counts messages rejected by a rate limit.
+	 * @param count the number of messages
+	 */
+	public void rejected(int count) {
+		rejected.add(count);
+	}
+
+	/**
+	 * Counts an evicted client.
+	 */
+	public void evicted() {
+		evictions.increment();
+	}
+
+	/**
+	 * Getter method for the recent message rate: the average over the time
+	 * elapsed since the previous sample, re-sampled at most once per second.
+	 * @return the number of messages published per second
+	 */
+	@Override
+	public synchronized double getMessageRate() {
+		long now = System.nanoTime();
+		long count = published.sum();
+		if (now - rateSampleTime >= 1000000000L) {
+			messageRate = (count - rateSampleCount) * 1e9 / (now - rateSampleTime);
+			rateSampleTime = now;
+			rateSampleCount = count;
+		}
+		return messageRate;
+	}
+
+	@Override
+	public long getPublishedMessages() {
+		return published.sum();
+	}
+
+	@Override
+	public int getSubscriberCount() {
+		return subscriberCount.getAsInt();
+	}
+
+	public MetricsSnapshot snapshot() {
+		return snapshot(true);
+	}
+
+	/**
+	 * Takes a snapshot of the metrics.
+	 * @param histograms <code>false</code> to leave the latency histograms
+	 * empty, for the rooms of a node snapshot: the node has their totals, and
+	 * three histograms per room would weigh about 12 KB each
+	 * @return the snapshot
+	 */
+	MetricsSnapshot snapshot(boolean histograms) {
+		LatencyHistogram.Snapshot empty = LatencyHistogram.Snapshot.empty();
+		return new MetricsSnapshot(roomName, 1, published.sum(), getMessageRate(), subscriberCount.getAsInt(),
+				queueDepth.getAsLong(), delivered.sum(), failed.sum(), dropped.sum(), evictions.sum(), rejected.sum(),
+				histograms ? fanOut.snapshot() : empty, histograms ? callbackLatency.snapshot() : empty,
+				histograms ? deliveryLatency.snapshot() : empty, Collections.<String, MetricsSnapshot>emptyMap());
+	}
+}
@@ -0,0 +1,176 @@
+package os.chat.server.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import os.chat.server.Message;
+
+/**
+ * An immutable part of a {@link SearchIndex}: the messages it holds and, for
+ * each term, the sorted list of the messages containing it.
+ * <p>
+ * Messages are numbered from 0 in publishing order inside the segment. The
+ * frames of the messages are stored back to back in a single array, and the
+ * terms are sorted so that a term is found by binary search.
+ */
+class IndexSegment {
+
+	private final String[] terms;
+	private final int[][] postings;
+	private final byte[] data;
+	private final int[] offsets; // offsets[i] to offsets[i + 1] is message i
+
+	private IndexSegment(String[] terms, int[][] postings, byte[] data, int[] offsets) {
+		this.terms = terms;
+		this.postings = postings;
+		this.data = data;
+		this.offsets = offsets;
+	}
+
+	/**
+	 * Builds a segment from messages.
+	 * @param messages the messages, oldest first
+	 * @return the segment
+	 */
+	static IndexSegment build(List<Message> messages) {
+		HashMap<String, IntList> index = new HashMap<String, IntList>();
+		int[] offsets = new int[messages.size() + 1];
+		int size = 0;
+		for (int doc = 0; doc < messages.size(); doc++) {
+			Message message = messages.get(doc);
+			offsets[doc] = size;
+			size += message.getFrame().length;
+			for (String term : Tokenizer.terms(message.getBody())) {
+				IntList list = index.get(term);
+				if (list == null) {
+					list = new IntList();
+					index.put(term, list);
+				}
+				// a term is listed once per message
+				if (list.size == 0 || list.values[list.size - 1] != doc)
+					list.add(doc);
+			}
+		}
+		offsets[messages.size()] = size;
+		byte[] data = new byte[size];
+		for (int doc = 0; doc < messages.size(); doc++) {
+			byte[] frame = messages.get(doc).getFrame();
+			System.arraycopy(frame, 0, data, offsets[doc], frame.length);
+		}
+		String[] terms = index.keySet().toArray(new String[0]);
+		Arrays.sort(terms);
+		int[][] postings = new int[terms.length][];
+		for (int i = 0; i < terms.length; i++) {
+			postings[i] = index.get(terms[i]).toArray();
+		}
+		return new IndexSegment(terms, postings, data, offsets);
+	}
+
+	/**
+	 * Merges two segments into one, <code>older</code> first.
+	 * @param older the segment with the older messages
+	 * @param newer the segment with the newer messages
+	 * @return the merged segment
+	 */
+	static IndexSegment merge(IndexSegment older, IndexSegment newer) {
+		int shift = older.size();
+		ArrayList<String> terms = new ArrayList<String>(older.terms.length + newer.terms.length);
+		ArrayList<int[]> postings = new ArrayList<int[]>(older.terms.length + newer.terms.length);
+		int i = 0, j = 0;
+		while (i < older.terms.length || j < newer.terms.length) {
+			int c = i == older.terms.length ? 1 : j == newer.terms.length ? -1 : older.terms[i].compareTo(newer.terms[j]);
+			if (c < 0) {
+				terms.add(older.terms[i]);
+				postings.add(older.postings[i++]);
+			} else if (c > 0) {
+				terms.add(newer.terms[j]);
+				postings.add(shifted(new int[0], newer.postings[j++], shift));
+			} else {
+				terms.add(older.terms[i]);
+				postings.add(shifted(older.postings[i++], newer.postings[j++], shift));
+			}
+		}
+		byte[] data = Arrays.copyOf(older.data, older.data.length + newer.data.length);
+		System.arraycopy(newer.data, 0, data, older.data.length, newer.data.length);
+		int[] offsets = Arrays.copyOf(older.offsets, older.offsets.length + newer.size());
+		for (int doc = 1; doc <= newer.size(); doc++) {
+			offsets[shift + doc] = older.data.length + newer.offsets[doc];
+		}
+		return new IndexSegment(terms.toArray(new String[0]), postings.toArray(new int[0][]), data, offsets);
+	}
+
+	private static int[] shifted(int[] first, int[] second, int shift) {
+		int[] merged = Arrays.copyOf(first, first.length + second.length);
+		for (int k = 0; k < second.length; k++) {
+			merged[first.length + k] = second[k] + shift;
+		}
+		return merged;
+	}
+
+	/**
+	 * @return the number of messages in the segment
+	 */
+	int size() {
+		return offsets.length - 1;
+	}
+
+	/**
+	 * @return the approximate memory used by the segment, in bytes
+	 */
+	long memory() {
+		long bytes = data.length + 4L * offsets.length;
+		for (int i = 0; i < terms.length; i++) {
+			bytes += 48 + 2L * terms[i].length() + 4L * postings[i].length;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Finds the newest messages containing all the terms.
+	 * @param queryTerms the terms, at least one
+	 * @param limit the maximum number of messages to add
+	 * @param results where the messages are added, newest first
+	 */
+	void search(List<String> queryTerms, int limit, List<Message> results) {
+		int[][] lists = new int[queryTerms.size()][];
+		for (int t = 0; t < lists.length; t++) {
+			int index = Arrays.binarySearch(terms, queryTerms.get(t));
+			if (index < 0)
+				return;
+			lists[t] = postings[index];
+		}
+		// walk the shortest list backwards, checking the others by binary search
+		Arrays.sort(lists, (a, b) -> a.length - b.length);
+		for (int k = lists[0].length - 1; k >= 0 && results.size() < limit; k--) {
+			int doc = lists[0][k];
+			boolean all = true;
+			for (int t = 1; t < lists.length && all; t++) {
+				all = Arrays.binarySearch(lists[t], doc) >= 0;
+			}
+			if (all)
+				results.add(Message.fromFrame(Arrays.copyOfRange(data, offsets[doc], offsets[doc + 1])));
+		}
+	}
+
+	/**
+	 * A growable list of <code>int</code>s, to avoid boxing.
+	 */
+	private static class IntList {
+
+		int[] values = new int[4];
+		int size = 0;
+
+		void add(int value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+}
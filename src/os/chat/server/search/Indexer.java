@@ -0,0 +1,115 @@
+package os.chat.server.search;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import os.chat.server.Message;
+
+/**
+ * The thread indexing the messages of all rooms, and the thread merging
+ * their segments.
+ * <p>
+ * Publishers only offer the message to a bounded queue. The size of the
+ * queue is set with <code>os.chat.search.queueCapacity</code>.
+ */
+class Indexer implements Runnable {
+
+	private static final int QUEUE_CAPACITY = Integer.getInteger("os.chat.search.queueCapacity", 100000);
+	private static final long REFRESH_MS = Long.getLong("os.chat.search.refreshMs", 1000);
+
+	private static Indexer instance;
+
+	private final ArrayBlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_CAPACITY);
+	private final LongAdder dropped = new LongAdder();
+	private final ExecutorService merger;
+
+	private Indexer() {
+		merger = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+			Thread thread = new Thread(r, "search-merger");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+		Thread thread = new Thread(this, "search-indexer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Getter method for the indexer, started on first use.
+	 * @return the indexer
+	 */
+	static synchronized Indexer getInstance() {
+		if (instance == null)
+			instance = new Indexer();
+		return instance;
+	}
+
+	void submit(SearchIndex index, Message message) {
+		if (!queue.offer(new Entry(index, message))) {
+			dropped.increment();
+		}
+	}
+
+	void scheduleMerge(SearchIndex index) {
+		merger.execute(() -> {
+			while (index.merge()) {
+				// merge until the sizes are balanced again
+			}
+		});
+	}
+
+	/**
+	 * Indexes the queued messages, sealing pending segments as they fill up
+	 * or grow old.
+	 */
+	public void run() {
+		HashSet<SearchIndex> waiting = new HashSet<SearchIndex>();
+		ArrayList<Entry> drained = new ArrayList<Entry>();
+		while (true) {
+			try {
+				Entry entry = queue.poll(REFRESH_MS, TimeUnit.MILLISECONDS);
+				if (entry != null) {
+					drained.add(entry);
+					queue.drainTo(drained, 1023);
+				}
+				long now = System.currentTimeMillis();
+				for (Entry e : drained) {
+					if (e.index.index(e.message, now))
+						waiting.add(e.index);
+				}
+				drained.clear();
+				for (Iterator<SearchIndex> it = waiting.iterator(); it.hasNext();) {
+					if (!it.next().refresh(now, REFRESH_MS))
+						it.remove();
+				}
+				long lost = dropped.sumThenReset();
+				if (lost > 0)
+					System.out.println("Search indexer behind, " + lost + " messages not indexed");
+			} catch (InterruptedException e) {
+				return;
+			} catch (RuntimeException e) {
+				System.out.println("Error indexing messages: " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static class Entry {
+
+		final SearchIndex index;
+		final Message message;
+
+		Entry(SearchIndex index, Message message) {
+			this.index = index;
+			this.message = message;
+		}
+	}
+}
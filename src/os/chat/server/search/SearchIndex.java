@@ -0,0 +1,160 @@
+package os.chat.server.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import os.chat.server.Message;
+
+/**
+ * The full-text index of the messages of one room.
+ * <p>
+ * Publishing only hands the message over to the {@link Indexer} thread. The
+ * indexer gathers the messages in a pending segment which is sealed, and
+ * becomes searchable, once it is full or at least every
+ * <code>os.chat.search.refreshMs</code> milliseconds. Sealed segments are
+ * immutable, so searches never wait for the indexer; small segments are
+ * merged in the background so that a search only visits a few of them.
+ * <p>
+ * The memory used by a room is bounded by
+ * <code>os.chat.search.maxBytes</code>: past it the oldest segments are
+ * dropped, and their messages can no longer be found.
+ */
+public class SearchIndex {
+
+	static final int SEGMENT_MESSAGES = Integer.getInteger("os.chat.search.segmentMessages", 4096);
+	static final int MAX_SEGMENT_MESSAGES = Integer.getInteger("os.chat.search.maxSegmentMessages", 1 << 20);
+	static final long MAX_BYTES = Long.getLong("os.chat.search.maxBytes", 64L << 20);
+	static final int MAX_RESULTS = 1000;
+
+	private final String roomName;
+	private volatile IndexSegment[] segments = new IndexSegment[0]; // oldest first
+	private final Indexer indexer;
+
+	// only used by the indexer thread
+	private final ArrayList<Message> pending = new ArrayList<Message>();
+	private long pendingSince;
+
+	/**
+	 * Creates the empty index of a room.
+	 * @param roomName the name of the room
+	 */
+	public SearchIndex(String roomName) {
+		this.roomName = roomName;
+		this.indexer = Indexer.getInstance();
+	}
+
+	/**
+	 * Queues a published message for indexing. Never blocks: if the indexer is
+	 * too far behind, the message is not indexed.
+	 * @param message the message
+	 */
+	public void add(Message message) {
+		indexer.submit(this, message);
+	}
+
+	/**
+	 * Finds the newest messages containing all the words of a query. The
+	 * comparison ignores case and punctuation.
+	 * @param query the words to look for
+	 * @param limit the maximum number of messages returned, at most
+	 * {@value #MAX_RESULTS}
+	 * @return the matching messages, newest first
+	 */
+	public List<Message> search(String query, int limit) {
+		List<String> terms = Tokenizer.terms(query);
+		List<Message> results = new ArrayList<Message>();
+		if (terms.isEmpty())
+			return results;
+		limit = Math.min(limit, MAX_RESULTS);
+		IndexSegment[] current = segments;
+		for (int i = current.length - 1; i >= 0 && results.size() < limit; i--) {
+			current[i].search(terms, limit, results);
+		}
+		return results;
+	}
+
+	/**
+	 * Getter method for the name of the room.
+	 * @return the name of the room
+	 */
+	public String getRoomName() {
+		return roomName;
+	}
+
+	/**
+	 * Adds a message to the pending segment. Called by the indexer thread.
+	 * @return <code>true</code> if the message is the first pending one
+	 */
+	boolean index(Message message, long now) {
+		if (pending.isEmpty())
+			pendingSince = now;
+		pending.add(message);
+		if (pending.size() >= SEGMENT_MESSAGES)
+			seal();
+		return pending.size() == 1;
+	}
+
+	/**
+	 * Seals the pending segment if it waited long enough. Called by the
+	 * indexer thread.
+	 * @return <code>true</code> if messages are still pending
+	 */
+	boolean refresh(long now, long refreshMs) {
+		if (!pending.isEmpty() && now - pendingSince >= refreshMs)
+			seal();
+		return !pending.isEmpty();
+	}
+
+	private void seal() {
+		IndexSegment segment = IndexSegment.build(pending);
+		pending.clear();
+		synchronized (this) {
+			IndexSegment[] current = Arrays.copyOf(segments, segments.length + 1);
+			current[current.length - 1] = segment;
+			long bytes = 0;
+			for (IndexSegment s : current) {
+				bytes += s.memory();
+			}
+			int dropped = 0;
+			while (bytes > MAX_BYTES && current.length - dropped > 1) {
+				bytes -= current[dropped++].memory();
+			}
+			segments = Arrays.copyOfRange(current, dropped, current.length);
+		}
+		indexer.scheduleMerge(this);
+	}
+
+	/**
+	 * Merges the newest pair of neighbouring segments of similar sizes, if
+	 * any. Called by the merge thread; the segments are only locked to swap
+	 * the merged one in.
+	 * @return <code>true</code> if two segments were merged
+	 */
+	boolean merge() {
+		IndexSegment[] current = segments;
+		for (int i = current.length - 2; i >= 0; i--) {
+			IndexSegment older = current[i];
+			IndexSegment newer = current[i + 1];
+			if (older.size() > 2 * newer.size() || older.size() + newer.size() > MAX_SEGMENT_MESSAGES)
+				continue;
+			IndexSegment merged = IndexSegment.merge(older, newer);
+			synchronized (this) {
+				// segments may have been added or dropped meanwhile
+				IndexSegment[] latest = segments;
+				for (int j = 0; j < latest.length - 1; j++) {
+					if (latest[j] == older && latest[j + 1] == newer) {
+						IndexSegment[] replaced = new IndexSegment[latest.length - 1];
+						System.arraycopy(latest, 0, replaced, 0, j);
+						replaced[j] = merged;
+						System.arraycopy(latest, j + 2, replaced, j + 1, latest.length - j - 2);
+						segments = replaced;
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+		return false;
+	}
+}
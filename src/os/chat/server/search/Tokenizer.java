@@ -0,0 +1,33 @@
+package os.chat.server.search;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits text into the terms of the {@link SearchIndex}: maximal runs of
+ * letters and digits, lower-cased.
+ */
+final class Tokenizer {
+
+	private Tokenizer() {
+	}
+
+	/**
+	 * @param text the text to split
+	 * @return its terms, in order, possibly repeated
+	 */
+	static List<String> terms(String text) {
+		List<String> terms = new ArrayList<String>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (word && start < 0) {
+				start = i;
+			} else if (!word && start >= 0) {
+				terms.add(text.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+		return terms;
+	}
+}
@@ -0,0 +1,255 @@
+package os.chat.server.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import os.chat.server.Message;
+
+/**
+ * One file of a {@link RoomLog}, memory-mapped for the whole of its
+ * preallocated size.
+ * <p>
+ * The segment is a sequence of records, each one being
+ * <pre>
+ * int length   (length of the frame, &gt; 0)
+ * int crc      (CRC-32 of the frame)
+ * byte[]       (the frame of a {@link Message})
+ * </pre>
+ * The unused end of the file is zeroed, so a length of 0 marks the end of
+ * the records. A record whose length or checksum is invalid (e.g. written
+ * partially before a crash) also ends the segment, and is overwritten by
+ * the next append.
+ * <p>
+ * The file is named after the sequence number of its first message, so
+ * that the segments of a room sort in sequence order.
+ * <p>
+ * The scan of the segment appended to, when it is opened, only checks the
+ * headers and checksums of the records, and keeps the position of a record
+ * every {@link #INDEX_INTERVAL} bytes, so that reading the tail of the log
+ * seeks close to its first message instead of decoding the records before
+ * it.
+ */
+class LogSegment {
+
+	private static final int RECORD_HEADER = 8;
+	private static final int INDEX_INTERVAL = 64 * 1024;
+
+	final File file;
+	final long baseSequence;
+	private final MappedByteBuffer buffer;
+	private final CRC32 crc = new CRC32();
+	private volatile long lastSequence;
+	private volatile long lastTimestamp;
+
+	// the sparse index made by the scan: the sequence number and position of
+	// a record every INDEX_INTERVAL bytes, in order
+	private long[] indexSequences = new long[0];
+	private int[] indexPositions = new int[0];
+	private int indexSize = 0;
+
+	private LogSegment(File file, long baseSequence, int size) throws IOException {
+		this.file = file;
+		this.baseSequence = baseSequence;
+		this.lastSequence = baseSequence - 1;
+		this.lastTimestamp = System.currentTimeMillis();
+		// the mapping stays valid after the file is closed
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			if (raf.length() < size)
+				raf.setLength(size);
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, raf.length()));
+		}
+	}
+
+	/**
+	 * Creates a new, empty segment.
+	 * @param directory the directory of the room log
+	 * @param baseSequence the sequence number of the first message
+	 * @param size the size of the file, in bytes
+	 * @return the segment
+	 */
+	static LogSegment create(File directory, long baseSequence, int size) throws IOException {
+		return new LogSegment(new File(directory, fileName(baseSequence)), baseSequence, size);
+	}
+
+	/**
+	 * Opens an existing segment.
+	 * @param file the segment file
+	 * @param scan <code>true</code> to read the records and position the
+	 * segment after the last valid one, which is only needed for the segment
+	 * that will be appended to
+	 * @return the segment
+	 */
+	static LogSegment open(File file, boolean scan) throws IOException {
+		long baseSequence = Long.parseLong(file.getName().substring(0, file.getName().indexOf('.')));
+		LogSegment segment = new LogSegment(file, baseSequence, (int) file.length());
+		segment.lastTimestamp = file.lastModified();
+		if (scan)
+			segment.scan();
+		return segment;
+	}
+
+	static String fileName(long baseSequence) {
+		return String.format("%020d.log", baseSequence);
+	}
+
+	static boolean isSegment(File file) {
+		return file.getName().matches("\\d{20}\\.log");
+	}
+
+	/**
+	 * Appends the frame of a message. Not thread-safe: appends are made by
+	 * the room, under its publish lock.
+	 * @param message the message
+	 * @return <code>false</code> if the segment is full
+	 */
+	boolean append(Message message) {
+		byte[] frame = message.getFrame();
+		if (buffer.remaining() < RECORD_HEADER + frame.length)
+			return false;
+		crc.reset();
+		crc.update(frame, 0, frame.length);
+		int start = buffer.position();
+		// the length is written last, so that a reader never sees a record
+		// whose frame is not there yet
+		buffer.position(start + 4);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(frame);
+		buffer.putInt(start, frame.length);
+		lastSequence = message.getSequence();
+		lastTimestamp = message.getTimestamp();
+		return true;
+	}
+
+	/**
+	 * Finds the end of the records and leaves the write position after the
+	 * last valid one, indexing the records on the way. Only the last message
+	 * is decoded, for its timestamp.
+	 */
+	private void scan() {
+		ByteBuffer view = buffer.duplicate();
+		CRC32 check = new CRC32();
+		int position = 0;
+		int last = -1;
+		int length;
+		while ((length = validLength(view, check, position)) > 0) {
+			view.position(position + RECORD_HEADER);
+			long sequence = Message.sequenceOf(view);
+			if (indexSize == 0 || position - indexPositions[indexSize - 1] >= INDEX_INTERVAL)
+				index(sequence, position);
+			lastSequence = sequence;
+			last = position;
+			position += RECORD_HEADER + length;
+		}
+		if (last >= 0)
+			lastTimestamp = Message.fromFrame(frame(view, last)).getTimestamp();
+		buffer.position(position);
+	}
+
+	private void index(long sequence, int position) {
+		if (indexSize == indexSequences.length) {
+			int capacity = Math.max(16, indexSize * 2);
+			indexSequences = Arrays.copyOf(indexSequences, capacity);
+			indexPositions = Arrays.copyOf(indexPositions, capacity);
+		}
+		indexSequences[indexSize] = sequence;
+		indexPositions[indexSize] = position;
+		indexSize++;
+	}
+
+	/**
+	 * Reads the records of the segment from a sequence number. The records
+	 * before it are skipped without being decoded, from the last indexed
+	 * record before it if the segment was scanned.
+	 * @param fromSequence the first sequence number passed to the reader
+	 * @param reader called with each message, oldest first
+	 */
+	void read(long fromSequence, Consumer<Message> reader) {
+		ByteBuffer view = buffer.duplicate();
+		CRC32 check = new CRC32();
+		int position = seek(fromSequence);
+		int length;
+		while ((length = validLength(view, check, position)) > 0) {
+			view.position(position + RECORD_HEADER);
+			if (Message.sequenceOf(view) >= fromSequence)
+				reader.accept(Message.fromFrame(frame(view, position)));
+			position += RECORD_HEADER + length;
+		}
+	}
+
+	/**
+	 * @return the position of the last indexed record whose sequence number
+	 * is at most <code>fromSequence</code>, 0 if there is none
+	 */
+	private int seek(long fromSequence) {
+		int low = 0;
+		int high = indexSize - 1;
+		int position = 0;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (indexSequences[middle] <= fromSequence) {
+				position = indexPositions[middle];
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * Checks the record at a position, without copying it.
+	 * @param view a duplicate of the buffer, whose position and limit are
+	 * changed
+	 * @return the length of the frame of the record, 0 if there is no valid
+	 * record there: the end of the records
+	 */
+	private static int validLength(ByteBuffer view, CRC32 check, int position) {
+		if (position + RECORD_HEADER > view.capacity())
+			return 0;
+		int length = view.getInt(position);
+		if (length <= 0 || position + RECORD_HEADER + length > view.capacity())
+			return 0;
+		check.reset();
+		view.limit(position + RECORD_HEADER + length);
+		view.position(position + RECORD_HEADER);
+		check.update(view);
+		view.limit(view.capacity());
+		return (int) check.getValue() == view.getInt(position + 4) ? length : 0;
+	}
+
+	private static byte[] frame(ByteBuffer view, int position) {
+		byte[] frame = new byte[view.getInt(position)];
+		view.get(position + RECORD_HEADER, frame);
+		return frame;
+	}
+
+	/**
+	 * @return the sequence number of the last message of the segment,
+	 * <code>baseSequence - 1</code> if it is empty
+	 */
+	long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * @return the time of the last message of the segment, in milliseconds
+	 */
+	long getLastTimestamp() {
+		return lastTimestamp;
+	}
+
+	/**
+	 * Writes the appended records to the disk. The mapping itself is released
+	 * by the garbage collector once the segment is dropped.
+	 */
+	void force() {
+		buffer.force();
+	}
+}
@@ -0,0 +1,261 @@
+package os.chat.server.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+import os.chat.server.Message;
+
+/**
+ * The persistence of the chat rooms of this JVM: one {@link RoomLog} per
+ * room, under the directory given by the <code>os.chat.log.dir</code> system
+ * property. Persistence is disabled when the property is not set.
+ * <p>
+ * Appends only write to memory-mapped segments. A single flusher thread
+ * writes them to the disk (group commit) every
+ * <code>os.chat.log.fsyncIntervalMs</code> milliseconds (10 by default), or
+ * as soon as a log has <code>os.chat.log.fsyncBatch</code> unflushed
+ * messages (1000 by default), so that durability never waits on the
+ * publish path. Segments are <code>os.chat.log.segmentBytes</code> bytes
+ * (64 MB by default); closed segments older than
+ * <code>os.chat.log.retentionMs</code> (7 days by default), or beyond the
+ * last <code>os.chat.log.retentionSegments</code> of a room (no limit by
+ * default), are deleted.
+ * <p>
+ * The store also keeps a snapshot of the rooms (see
+ * {@link #writeSnapshot(Collection)}), so that a restarted server only has
+ * to read the end of the logs.
+ */
+public class MessageStore implements Runnable {
+
+	private static MessageStore instance = null;
+	private static boolean initialized = false;
+
+	private static final long FSYNC_INTERVAL_MS = Long.getLong("os.chat.log.fsyncIntervalMs", 10);
+	private static final long FSYNC_BATCH = Long.getLong("os.chat.log.fsyncBatch", 1000);
+	private static final int SEGMENT_BYTES = Integer.getInteger("os.chat.log.segmentBytes", 64 * 1024 * 1024);
+	private static final long RETENTION_MS = Long.getLong("os.chat.log.retentionMs", 7L * 24 * 3600 * 1000);
+	private static final int RETENTION_SEGMENTS = Integer.getInteger("os.chat.log.retentionSegments", 0);
+	private static final long RETENTION_CHECK_MS = 60000;
+	private static final int SNAPSHOT_MAGIC = 0x43485331; // "CHS1"
+	private static final String SNAPSHOT_FILE = "rooms.snapshot";
+
+	private final File directory;
+	private final ConcurrentHashMap<String, RoomLog> logs = new ConcurrentHashMap<String, RoomLog>();
+	private final Thread flusher;
+	private volatile boolean running = true;
+
+	/**
+	 * Creates a store and starts its flusher thread.
+	 * @param directory the directory of the room logs
+	 */
+	public MessageStore(File directory) {
+		this.directory = directory;
+		flusher = new Thread(this, "log-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+		System.out.println("Message store in " + directory.getAbsolutePath());
+	}
+
+	/**
+	 * Retrieves the store of this JVM, creating it on first use.
+	 * @return the store, or <code>null</code> if persistence is disabled
+	 */
+	public static synchronized MessageStore getInstance() {
+		if (!initialized) {
+			String dir = System.getProperty("os.chat.log.dir");
+			if (dir != null)
+				instance = new MessageStore(new File(dir));
+			initialized = true;
+		}
+		return instance;
+	}
+
+	/**
+	 * Opens the log of a chat room, creating it if needed.
+	 * @param roomName the name of the chat room
+	 * @return the log of the room
+	 */
+	public RoomLog open(String roomName) throws IOException {
+		RoomLog log = logs.get(roomName);
+		if (log == null) {
+			synchronized (logs) {
+				log = logs.get(roomName);
+				if (log == null) {
+					log = new RoomLog(this, roomName, new File(directory, encode(roomName)), SEGMENT_BYTES);
+					logs.put(roomName, log);
+				}
+			}
+		}
+		return log;
+	}
+
+	/**
+	 * Lists the rooms that have a log in the store directory.
+	 * @return the names of the rooms
+	 */
+	public List<String> listRooms() {
+		List<String> rooms = new ArrayList<String>();
+		File[] files = directory.listFiles(File::isDirectory);
+		if (files != null) {
+			for (File file : files) {
+				rooms.add(decode(file.getName()));
+			}
+		}
+		return rooms;
+	}
+
+	/**
+	 * Writes a snapshot of the rooms, replacing the previous one atomically.
+	 * <p>
+	 * The snapshot holds, for each room, the sequence number of its last
+	 * message and its recent history, so that recovery only reads the
+	 * messages logged after it. It is written to a temporary file, synced to
+	 * the disk before it is renamed, so that a crash never leaves a renamed
+	 * but truncated snapshot, and the directory is synced after the rename.
+	 * @param rooms the state of every room
+	 */
+	public void writeSnapshot(Collection<RoomSnapshot> rooms) throws IOException {
+		File tmp = new File(directory, SNAPSHOT_FILE + ".tmp");
+		FileOutputStream file = new FileOutputStream(tmp);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(rooms.size());
+			for (RoomSnapshot room : rooms) {
+				out.writeUTF(room.getRoomName());
+				out.writeLong(room.getLastSequence());
+				out.writeInt(room.getHistory().size());
+				for (Message message : room.getHistory()) {
+					out.writeInt(message.getFrame().length);
+					out.write(message.getFrame());
+				}
+			}
+			out.flush();
+			file.getFD().sync();
+		}
+		Files.move(tmp.toPath(), new File(directory, SNAPSHOT_FILE).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		try (FileChannel dir = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+			dir.force(true);
+		} catch (IOException e) {
+			// directories can not be opened on some platforms, where the
+			// rename is durable anyway
+		}
+	}
+
+	/**
+	 * Reads the last snapshot written.
+	 * @return the state of the rooms, keyed by room name, empty if there is
+	 * no snapshot
+	 */
+	public Map<String, RoomSnapshot> readSnapshot() throws IOException {
+		Map<String, RoomSnapshot> rooms = new LinkedHashMap<String, RoomSnapshot>();
+		File file = new File(directory, SNAPSHOT_FILE);
+		if (!file.isFile())
+			return rooms;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != SNAPSHOT_MAGIC)
+				throw new IOException("Not a snapshot: " + file);
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String roomName = in.readUTF();
+				long lastSequence = in.readLong();
+				int size = in.readInt();
+				List<Message> history = new ArrayList<Message>(size);
+				for (int j = 0; j < size; j++) {
+					byte[] frame = new byte[in.readInt()];
+					in.readFully(frame);
+					history.add(Message.fromFrame(frame));
+				}
+				rooms.put(roomName, new RoomSnapshot(roomName, lastSequence, history));
+			}
+		}
+		return rooms;
+	}
+
+	private static String decode(String fileName) {
+		try {
+			return URLDecoder.decode(fileName, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String encode(String roomName) {
+		try {
+			return URLEncoder.encode(roomName, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Called after each append: wakes the flusher up when a log has enough
+	 * unflushed messages.
+	 */
+	void appended(RoomLog log, long unflushed) {
+		if (unflushed == FSYNC_BATCH)
+			LockSupport.unpark(flusher);
+	}
+
+	/**
+	 * Flushes every log to the disk.
+	 */
+	public void flush() {
+		for (RoomLog log : logs.values()) {
+			if (log.unflushed.get() > 0 || !log.rolled.isEmpty())
+				log.flush();
+		}
+	}
+
+	/**
+	 * Stops the flusher thread after a last flush.
+	 */
+	public void close() {
+		running = false;
+		LockSupport.unpark(flusher);
+	}
+
+	/**
+	 * The flusher loop.
+	 */
+	public void run() {
+		long nextRetention = System.currentTimeMillis() + RETENTION_CHECK_MS;
+		while (running) {
+			LockSupport.parkNanos(FSYNC_INTERVAL_MS * 1000000L);
+			try {
+				flush();
+				if (System.currentTimeMillis() >= nextRetention) {
+					long oldest = System.currentTimeMillis() - RETENTION_MS;
+					for (RoomLog log : logs.values()) {
+						log.retain(oldest, RETENTION_SEGMENTS);
+					}
+					nextRetention = System.currentTimeMillis() + RETENTION_CHECK_MS;
+				}
+			} catch (RuntimeException e) {
+				System.out.println("Error while flushing the message store");
+				e.printStackTrace();
+			}
+		}
+		flush();
+	}
+}
@@ -0,0 +1,142 @@
+package os.chat.server.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import os.chat.server.Message;
+
+/**
+ * The durable, append-only log of the messages of one chat room.
+ * <p>
+ * The log is a directory of {@link LogSegment}s. Messages are appended to
+ * the last segment, a memory-mapped file, so an append is a memory copy;
+ * when the segment is full a new one is started. Appending does not wait
+ * for the disk: the {@link MessageStore} flushes the logs in the background
+ * (group commit), and old segments are deleted by its retention.
+ */
+public class RoomLog {
+
+	private final String roomName;
+	private final File directory;
+	private final int segmentSize;
+	private final MessageStore store;
+
+	private final CopyOnWriteArrayList<LogSegment> segments = new CopyOnWriteArrayList<LogSegment>();
+	private volatile LogSegment current;
+	/** Segments rolled over and not yet flushed by the store. */
+	final ConcurrentLinkedQueue<LogSegment> rolled = new ConcurrentLinkedQueue<LogSegment>();
+	/** Messages appended since the last flush. */
+	final AtomicLong unflushed = new AtomicLong();
+
+	RoomLog(MessageStore store, String roomName, File directory, int segmentSize) throws IOException {
+		this.store = store;
+		this.roomName = roomName;
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Can not create " + directory);
+		File[] files = directory.listFiles(LogSegment::isSegment);
+		Arrays.sort(files);
+		for (int i = 0; i < files.length; i++) {
+			segments.add(LogSegment.open(files[i], i == files.length - 1));
+		}
+		if (segments.isEmpty())
+			segments.add(LogSegment.create(directory, 1, segmentSize));
+		current = segments.get(segments.size() - 1);
+	}
+
+	/**
+	 * @return the name of the chat room
+	 */
+	public String getRoomName() {
+		return roomName;
+	}
+
+	/**
+	 * @return the sequence number of the last message in the log, 0 if none
+	 */
+	public long getLastSequence() {
+		return Math.max(0, current.getLastSequence());
+	}
+
+	/**
+	 * Appends a message. Messages must be appended in sequence order, by one
+	 * thread at a time (the room appends under its publish lock).
+	 * @param message the message just published
+	 */
+	public void append(Message message) {
+		try {
+			if (!current.append(message)) {
+				LogSegment full = current;
+				current = LogSegment.create(directory, message.getSequence(), segmentSize);
+				segments.add(current);
+				rolled.add(full);
+				if (!current.append(message))
+					throw new IOException("Message larger than a log segment");
+			}
+		} catch (IOException e) {
+			System.out.println("Can not append to the log of room " + roomName + ": " + e.getMessage());
+			return;
+		}
+		store.appended(this, unflushed.incrementAndGet());
+	}
+
+	/**
+	 * Reads the logged messages, oldest first.
+	 * @param fromSequence the first sequence number wanted
+	 * @param reader called with each message
+	 */
+	public void read(long fromSequence, Consumer<Message> reader) {
+		LogSegment[] all = segments.toArray(new LogSegment[0]);
+		for (int i = 0; i < all.length; i++) {
+			// skip the segments that end before fromSequence
+			if (i + 1 < all.length && all[i + 1].baseSequence <= fromSequence)
+				continue;
+			all[i].read(fromSequence, reader);
+		}
+	}
+
+	/**
+	 * Writes the appended messages to the disk. Called by the flusher of the
+	 * store.
+	 */
+	void flush() {
+		unflushed.set(0);
+		LogSegment segment;
+		while ((segment = rolled.poll()) != null) {
+			segment.force();
+		}
+		current.force();
+	}
+
+	/**
+	 * Deletes the segments, except the current one, whose last message was
+	 * written before <code>oldest</code>.
+	 * @param oldest the oldest modification time kept, in milliseconds
+	 * @param maxSegments the maximum number of segments kept, 0 for no limit
+	 */
+	void retain(long oldest, int maxSegments) {
+		ArrayList<LogSegment> expired = new ArrayList<LogSegment>();
+		int count = segments.size();
+		for (LogSegment segment : segments) {
+			if (segment == current)
+				break;
+			if (segment.getLastTimestamp() < oldest || (maxSegments > 0 && count > maxSegments)) {
+				expired.add(segment);
+				count--;
+			}
+		}
+		for (LogSegment segment : expired) {
+			segments.remove(segment);
+			rolled.remove(segment);
+			if (segment.file.delete())
+				System.out.println("Deleted log segment " + segment.file);
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package os.chat.server.store;
+
+import java.io.Serializable;
+import java.util.List;
+
+import os.chat.server.Message;
+import os.chat.server.MessageList;
+
+/**
+ * The state of a chat room saved in a snapshot: its name, the sequence
+ * number of its last message and its recent history. Also sent to another
+ * server node when the room moves there.
+ */
+public class RoomSnapshot implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String roomName;
+	private final long lastSequence;
+	private final List<Message> history;
+
+	/**
+	 * Creates the snapshot of a room.
+	 * @param roomName the name of the chat room
+	 * @param lastSequence the sequence number of the last message published
+	 * @param history the recent messages, oldest first
+	 */
+	public RoomSnapshot(String roomName, long lastSequence, List<Message> history) {
+		this.roomName = roomName;
+		this.lastSequence = lastSequence;
+		// sent with the compact encoding of the messages
+		this.history = new MessageList(history);
+	}
+
+	/**
+	 * @return the name of the chat room
+	 */
+	public String getRoomName() {
+		return roomName;
+	}
+
+	/**
+	 * @return the sequence number of the last message published when the
+	 * snapshot was taken
+	 */
+	public long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * @return the recent messages, oldest first
+	 */
+	public List<Message> getHistory() {
+		return history;
+	}
+}